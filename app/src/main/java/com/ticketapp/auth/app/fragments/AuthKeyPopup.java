@@ -83,7 +83,7 @@ public class AuthKeyPopup extends DialogFragment {
             String[] values = new String[FileManager.keys.size()];
 
             for (int i = 0; i < values.length; i++) {
-                values[i] = FileManager.keys.get(i).split(",")[1];
+                values[i] = FileManager.getKeyValue(FileManager.keys.get(i));
             }
             select_key.setAdapter(new ArrayAdapter<String>(TicketActivity.outer,
                     R.layout.simple_spinner_item, android.R.id.text1, values));
@@ -10,14 +10,21 @@ import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
 import android.widget.Button;
+import android.widget.CompoundButton;
 import android.widget.ScrollView;
+import android.widget.Switch;
 import android.widget.TextView;
 
 import com.ticketapp.auth.app.main.FileManager;
 import com.ticketapp.auth.app.main.TicketActivity;
 import com.ticketapp.auth.app.ulctools.Reader;
+import com.ticketapp.auth.ticket.MacBenchmark;
+import com.ticketapp.auth.ticket.TapProfile;
+import com.ticketapp.auth.ticket.Ticket;
 import com.ticketapp.auth.R;
 
+import java.security.GeneralSecurityException;
+
 public class ConsolePopup extends DialogFragment {
 
     private TextView console;
@@ -26,9 +33,44 @@ public class ConsolePopup extends DialogFragment {
     private TextView console_hint;
     private final View.OnClickListener btn_archive_listener = new View.OnClickListener() {
         public void onClick(View v) {
+            if (Reader.trace.size() > 0) {
+                Reader.appendHistory("\ncommand latencies:\n" + Reader.trace.summary());
+                Reader.appendHistory(Reader.roundTrips + "\n");
+                Reader.appendHistory(Ticket.getKeyCache() + "\n");
+            }
             FileManager.saveLog(TicketActivity.outer);
+            FileManager.saveTrace(TicketActivity.outer);
             console.setText("");
-            Reader.history = "";
+            Reader.clearHistory();
+        }
+    };
+    private Button btn_benchmark;
+    private Switch trace_switch;
+    private final View.OnClickListener btn_benchmark_listener = new View.OnClickListener() {
+        public void onClick(View v) {
+            Reader.appendHistory("\nbenchmark running...\n");
+            btn_benchmark.setEnabled(false);
+            update();
+            // The bad link profile waits for its simulated card for seconds. Not on the card
+            // thread, which keeps serving real taps meanwhile, a tap may slow the numbers down.
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        Reader.appendHistory(MacBenchmark.run(10000));
+                        Reader.appendHistory(TapProfile.badLink(200, System.nanoTime()));
+                    } catch (GeneralSecurityException e) {
+                        Reader.appendHistory("\nbenchmark failed: " + e + "\n");
+                    }
+                    console.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            btn_benchmark.setEnabled(true);
+                            update();
+                        }
+                    });
+                }
+            }, "benchmark").start();
         }
     };
 
@@ -46,6 +88,18 @@ public class ConsolePopup extends DialogFragment {
         btn_archive = view.findViewById(R.id.btn_console_archive);
 
         btn_archive.setOnClickListener(btn_archive_listener);
+        btn_benchmark = view.findViewById(R.id.btn_console_benchmark);
+        btn_benchmark.setOnClickListener(btn_benchmark_listener);
+
+        // Recording is opt-in, the trace holds the card data of every tap
+        trace_switch = view.findViewById(R.id.trace_switch);
+        trace_switch.setChecked(Reader.recordTrace);
+        trace_switch.setOnCheckedChangeListener(new CompoundButton.OnCheckedChangeListener() {
+            @Override
+            public void onCheckedChanged(CompoundButton buttonView, boolean isChecked) {
+                Reader.recordTrace = isChecked;
+            }
+        });
 
         console_hint = view.findViewById(R.id.console_hint);
 
@@ -18,18 +18,24 @@ import android.widget.ImageButton;
 import android.widget.PopupMenu;
 import android.widget.TextView;
 
+import com.ticketapp.auth.app.main.FileManager;
 import com.ticketapp.auth.app.main.TicketActivity;
+import com.ticketapp.auth.app.ulctools.CardExecutor;
+import com.ticketapp.auth.app.ulctools.CardSession;
 import com.ticketapp.auth.app.ulctools.Dump;
 import com.ticketapp.auth.app.ulctools.Reader;
+import com.ticketapp.auth.app.ulctools.TagCapabilities;
 import com.ticketapp.auth.R;
 
+import java.util.List;
+
 public class DumpFragment extends Fragment {
 
     public static int card_auth0;
     public static int card_auth1;
     private static String received_data = "";
     private static TextView card_data;
-    private static final byte[] data = new byte[192];
+    private static byte[] data = new byte[192];
     private static boolean stringAsBinary = false;
     private static ActionBar actionBar;
     private static TextView safeMode_indicator;
@@ -51,30 +57,71 @@ public class DumpFragment extends Fragment {
         if (TicketActivity.nfcA_available) DumpFragment.read(false);
     }
 
-    public static void read(boolean display) {
-        boolean autoAuth = TicketActivity.autoAuth;
+    public static void read(final boolean display) {
+        // Auto-auth tries every stored key, copied here as the key list changes on the UI thread
+        final List<String> keys = TicketActivity.autoAuth ? FileManager.getKeyValues() : null;
         if (TicketActivity.nfcA_available) {
-            String info = "";
-            if (Reader.connect()) {
-                Reader.readMemory(data, autoAuth, display);
-                Reader.disconnect();
-                int mode = 0;
-                if (stringAsBinary) mode = 1;
-                received_data = Dump.hexView(data, mode);
-                card_data.setText(received_data);
-                card_auth0 = (int) data[42 * 4];
-                card_auth1 = (int) data[43 * 4];
-                if (card_auth0 > 2 && card_auth0 <= 48) {
-                    if (card_auth1 == 1) info += "write protected starting from page " + card_auth0;
-                    else if (card_auth1 == 0)
-                        info += "R/W protected starting from page " + card_auth0;
+            CardExecutor.submit(new CardExecutor.TapJob<DumpResult>() {
+                @Override
+                protected DumpResult run(CardSession session) {
+                    DumpResult result = new DumpResult();
+                    result.capabilities = session.getCapabilities();
+                    result.memory = new byte[result.capabilities.getPageCount() * 4];
+                    session.readMemory(result.memory, keys, display);
+                    return result;
                 }
-                auth_info.setText(info);
-                auth_info.setEllipsize(TextUtils.TruncateAt.MARQUEE);
-                auth_info.setSelected(true);
-                tag_hint.setVisibility(View.GONE);
-            }
+            }, new CardExecutor.TapCallback<DumpResult>() {
+                @Override
+                public void onProgress(String message) {
+                }
+
+                @Override
+                public void onResult(DumpResult result) {
+                    if (Reader.keyRanking.isChanged()) FileManager.saveKeyScores(TicketActivity.outer);
+                    show(result);
+                }
+
+                @Override
+                public void onError(Exception e) {
+                }
+            });
+        }
+    }
+
+    /**
+     * Memory and capabilities of the card, read on the card thread.
+     */
+    private static class DumpResult {
+        byte[] memory;
+        TagCapabilities capabilities;
+    }
+
+    private static void show(DumpResult result) {
+        String info = "";
+        data = result.memory;
+        TagCapabilities capabilities = result.capabilities;
+        int mode = 0;
+        if (stringAsBinary) mode = 1;
+        received_data = Dump.hexView(data, mode);
+        card_data.setText(received_data);
+        card_auth0 = 0;
+        card_auth1 = 0;
+        if (capabilities.supportsAuthentication()) {
+            // Probed when the card was discovered, the pages may be read protected now
+            card_auth0 = capabilities.getAuth0() != TagCapabilities.UNKNOWN
+                    ? capabilities.getAuth0() : (int) data[42 * 4];
+            card_auth1 = capabilities.getAuth1() != TagCapabilities.UNKNOWN
+                    ? capabilities.getAuth1() : (int) data[43 * 4];
+        }
+        if (card_auth0 > 2 && card_auth0 <= 48) {
+            if (card_auth1 == 1) info += "write protected starting from page " + card_auth0;
+            else if (card_auth1 == 0)
+                info += "R/W protected starting from page " + card_auth0;
         }
+        auth_info.setText(info);
+        auth_info.setEllipsize(TextUtils.TruncateAt.MARQUEE);
+        auth_info.setSelected(true);
+        tag_hint.setVisibility(View.GONE);
     }
 
     public static void erase() {
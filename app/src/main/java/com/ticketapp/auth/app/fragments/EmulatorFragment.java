@@ -15,6 +15,8 @@ import android.view.ViewGroup;
 import android.widget.Button;
 import android.widget.TextView;
 
+import com.ticketapp.auth.app.ulctools.CardExecutor;
+import com.ticketapp.auth.app.ulctools.CardSession;
 import com.ticketapp.auth.app.ulctools.Reader;
 import com.ticketapp.auth.app.ulctools.Utilities;
 import com.ticketapp.auth.ticket.Ticket;
@@ -63,6 +65,7 @@ public class EmulatorFragment extends Fragment {
         btn_validate.setEnabled(b);
         btn_issue.setEnabled(b);
         active = b;
+        prepare();
         if (issue_mode) {
             issue();
         } else {
@@ -70,57 +73,120 @@ public class EmulatorFragment extends Fragment {
         }
     }
 
+    /**
+     * Derive the keys and authenticate as soon as the card is discovered. The session is
+     * kept open for the issue or validation job that follows.
+     */
+    private void prepare() {
+        if (!active) return;
+        CardExecutor.submit(new CardExecutor.TapJob<Boolean>() {
+            @Override
+            protected Boolean run(CardSession session) throws GeneralSecurityException {
+                return ticket.prepare(session);
+            }
+
+            @Override
+            protected boolean keepSession() {
+                return true;
+            }
+        }, null);
+    }
+
     public void issue() {
-        if (active && Reader.connect()) {
-            try {
+        if (!active) return;
+        ticket_info.setText("Issuing...");
+        CardExecutor.submit(new CardExecutor.TapJob<String>() {
+            @Override
+            protected String run(CardSession session) throws GeneralSecurityException {
+                ticket.setSession(session);
                 ticket.issue(30, 10);
-                ticket_info.setText(Ticket.getInfoToShow());
-            } catch (Exception e) {
+                return ticket.getInfoToShow();
+            }
+        }, new CardExecutor.TapCallback<String>() {
+            @Override
+            public void onProgress(String message) {
+                ticket_info.setText(message);
+            }
+
+            @Override
+            public void onResult(String info) {
+                ticket_info.setText(info);
+            }
+
+            @Override
+            public void onError(Exception e) {
                 e.printStackTrace();
+                ticket_info.setText(ticket.getInfoToShow());
             }
-            Reader.disconnect();
-        }
+        });
+    }
+
+    /**
+     * Outcome of a validation, collected on the card thread.
+     */
+    private static class UseResult {
+        boolean valid;
+        int uses;
+        int expiryTime;
+        String info;
     }
 
     public void use() {
-        if (active && Reader.connect()) {
-            try {
-                boolean valid = ticket.use();
+        if (!active) return;
+        ticket_info.setText("Validating...");
+        CardExecutor.submit(new CardExecutor.TapJob<UseResult>() {
+            @Override
+            protected UseResult run(CardSession session) throws GeneralSecurityException {
+                UseResult result = new UseResult();
+                ticket.setSession(session);
+                result.valid = ticket.use();
+                publishProgress(ticket.getInfoToShow());
+                result.uses = ticket.getRemainingUses();
+                result.expiryTime = ticket.getExpiryTime();
+                result.info = ticket.getInfoToShow();
+                return result;
+            }
+        }, new CardExecutor.TapCallback<UseResult>() {
+            @Override
+            public void onProgress(String message) {
+                ticket_info.setText(message);
+            }
 
+            @Override
+            public void onResult(UseResult result) {
                 int currentTime = (int) ((new Date()).getTime() / 1000 / 60);
-                int uses = ticket.getRemainingUses();
-                int expiryTime = ticket.getExpiryTime();
-
-                Reader.disconnect();
                 String msg;
 
-                if (valid) {
+                if (result.valid) {
                     msg = "Used ticket successfully. The ticket was valid.";
                 } else {
                     msg = "Ticket use FAILED. The following data may be INVALID.";
                 }
                 System.out.println(msg);
-                Reader.history += "\n" + msg + "\n";
+                Reader.appendHistory("\n" + msg + "\n");
 
                 String info = "Current time:\n"
                         + new Date((long) currentTime * 60 * 1000) + "\n\nExpiry time:\n"
-                        + new Date((long) expiryTime * 60 * 1000) + "\n\nRemaining uses: " + uses + "\n";
+                        + new Date((long) result.expiryTime * 60 * 1000) + "\n\nRemaining uses: " + result.uses + "\n";
                 System.out.println(info);
-                Reader.history += "\n" + info + "\n--------------------------------";
+                Reader.appendHistory("\n" + info + "\n--------------------------------");
 
-                if (valid) {
+                if (result.valid) {
                     ToneGenerator toneG = new ToneGenerator(AudioManager.STREAM_RING, 100);
                     toneG.startTone(ToneGenerator.TONE_CDMA_ALERT_CALL_GUARD, 100);
                 } else {
                     ToneGenerator toneG = new ToneGenerator(AudioManager.STREAM_RING, 100);
                     toneG.startTone(ToneGenerator.TONE_CDMA_ABBR_INTERCEPT, 100);
                 }
-                ticket_info.setText(Ticket.getInfoToShow());
-            } catch (GeneralSecurityException g) {
-                Log.d("Error", g.toString());
+                ticket_info.setText(result.info);
             }
-            Reader.disconnect();
-        }
+
+            @Override
+            public void onError(Exception e) {
+                Log.d("Error", e.toString());
+                ticket_info.setText(ticket.getInfoToShow());
+            }
+        });
     }
 
     @Override
@@ -12,6 +12,9 @@ import android.widget.Button;
 import android.widget.CheckBox;
 import android.widget.TextView;
 
+import com.ticketapp.auth.app.ulctools.CardExecutor;
+import com.ticketapp.auth.app.ulctools.CardSession;
+import com.ticketapp.auth.app.ulctools.EraseResult;
 import com.ticketapp.auth.app.ulctools.Reader;
 import com.ticketapp.auth.R;
 
@@ -26,9 +29,15 @@ public class ErasePopup extends DialogFragment {
 
     private final View.OnClickListener btn_erase_listener = new View.OnClickListener() {
         public void onClick(View v) {
-            if (Reader.connect()) {
-                Reader.erase(erase_auth);
-                Reader.disconnect();
+            final boolean auth = erase_auth;
+            if (Reader.nfcA_card != null) {
+                CardExecutor.submit(new CardExecutor.TapJob<EraseResult>() {
+                    @Override
+                    protected EraseResult run(CardSession session) {
+                        return session.eraseChanged(auth);
+                    }
+                }, null);
+                // Runs after the erase on the card thread
                 DumpFragment.update();
             }
             dismiss();
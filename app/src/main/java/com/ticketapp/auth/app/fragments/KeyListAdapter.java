@@ -45,7 +45,7 @@ public class KeyListAdapter extends ArrayAdapter<String> {
         String[] days = TicketActivity.outer.getResources().getStringArray(R.array.weekdays);
         int[] colors = context.getResources().getIntArray(R.array.daycolors);
 
-        String[] parts = values.get(position).toString().split(",");
+        String[] parts = values.get(position).toString().split(",", 2);
         String dateString;
         ImageView colorStrip = rowView.findViewById(R.id.list_item_icon);
         ImageView is_selected = rowView.findViewById(R.id.is_selected);
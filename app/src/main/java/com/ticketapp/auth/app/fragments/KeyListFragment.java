@@ -124,8 +124,7 @@ public class KeyListFragment extends Fragment {
             public void onItemClick(AdapterView<?> parent, View view, int position, long id) {
                 if (!multiSelect) {
                     Log.d("Key", adapter.getItem(position));
-                    String[] parts = adapter.getItem(position).split(",");
-                    Reader.setAuthKey(parts[1]);
+                    Reader.setAuthKey(FileManager.getKeyValue(adapter.getItem(position)));
                     key_in_use.setText(getString(R.string.key_in_use) + Reader.authKey);
                     Toast.makeText(TicketActivity.outer, getString(R.string.key_in_use) + Reader.authKey, Toast.LENGTH_SHORT).show();
                     adapter.notifyDataSetChanged();
@@ -158,8 +157,7 @@ public class KeyListFragment extends Fragment {
                     FileManager.removeKey(TicketActivity.outer, item);
                 }
                 if (adapter.isEmpty()) {
-                    String[] parts = adapter.getItem(0).split(",");
-                    Reader.setAuthKey(parts[1]);
+                    Reader.setAuthKey(FileManager.getKeyValue(adapter.getItem(0)));
                     adapter.notifyDataSetChanged();
                 }
             }
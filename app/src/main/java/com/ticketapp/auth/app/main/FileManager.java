@@ -20,6 +20,7 @@ import java.io.FileReader;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
@@ -38,14 +39,14 @@ public class FileManager {
         try {
             OutputStreamWriter outputStreamWriter = new OutputStreamWriter(context.openFileOutput("keys.txt", Context.MODE_PRIVATE));
             for (String key : keys) {
-                String[] parts = key.split(",");
+                String[] parts = key.split(",", 2);
                 String timeStamp = parts[0];
                 String authKey = parts[1];
                 outputStreamWriter.write(timeStamp + "," + authKey + "\n");
             }
             outputStreamWriter.close();
         } catch (IOException e) {
-            Reader.history += "\nKey write error " + Calendar.getInstance().getTime() + "\n";
+            Reader.appendHistory("\nKey write error " + Calendar.getInstance().getTime() + "\n");
         }
     }
 
@@ -91,18 +92,72 @@ public class FileManager {
                 outputStreamWriter.write(defaultKey + "\n");
             }
         } catch (FileNotFoundException e) {
-            Reader.history += "\nKey file FileNotFoundException " + Calendar.getInstance().getTime() + "\n";
+            Reader.appendHistory("\nKey file FileNotFoundException " + Calendar.getInstance().getTime() + "\n");
             Log.e("log activity", "File not found: " + e.toString());
             writeKeys(context);
 
         } catch (IOException e) {
-            Reader.history += "\nKey file IOException " + Calendar.getInstance().getTime() + "\n";
+            Reader.appendHistory("\nKey file IOException " + Calendar.getInstance().getTime() + "\n");
             Log.e("log activity", "Can not read file: " + e.toString());
         }
         return keys;
 
     }
 
+    /**
+     * @return the stored keys without their time stamps, as given to Reader.setAuthKey()
+     */
+    public static ArrayList<String> getKeyValues() {
+        ArrayList<String> values = new ArrayList<String>();
+        for (String key : keys) {
+            String value = getKeyValue(key);
+            if (value != null) values.add(value);
+        }
+        return values;
+    }
+
+    /**
+     * The key itself may contain commas, only the time stamp is split off.
+     *
+     * @param line stored key line: time stamp, comma and key
+     * @return the key, null if the line has no time stamp
+     */
+    public static String getKeyValue(String line) {
+        String[] parts = line.split(",", 2);
+        return parts.length > 1 ? parts[1] : null;
+    }
+
+    /** Load the auto-auth scores of the stored keys into Reader.keyRanking */
+    public static void getKeyScores(Context context) {
+        try {
+            InputStream inputStream = context.openFileInput("key_scores.txt");
+            BufferedReader bufferedReader = new BufferedReader(new InputStreamReader(inputStream));
+            ArrayList<String> lines = new ArrayList<String>();
+            String line;
+            while ((line = bufferedReader.readLine()) != null) {
+                lines.add(line);
+            }
+            inputStream.close();
+            Reader.keyRanking.fromLines(lines);
+        } catch (FileNotFoundException e) {
+            // No key has authenticated a card yet
+        } catch (IOException e) {
+            Log.e("log activity", "Can not read key scores: " + e.toString());
+        }
+    }
+
+    public static void saveKeyScores(Context context) {
+        try {
+            OutputStreamWriter outputStreamWriter = new OutputStreamWriter(context.openFileOutput("key_scores.txt", Context.MODE_PRIVATE));
+            for (String line : Reader.keyRanking.toLines()) {
+                outputStreamWriter.write(line + "\n");
+            }
+            outputStreamWriter.close();
+        } catch (IOException e) {
+            Reader.appendHistory("\nKey score write error " + Calendar.getInstance().getTime() + "\n");
+        }
+    }
+
     public static ArrayList<String> getFileNames(Context context) {
         fileNames = new ArrayList<String>();
         ArrayList<String> fileList = new ArrayList<String>(Arrays.asList(context.fileList()));
@@ -161,6 +216,22 @@ public class FileManager {
         }
     }
 
+    public static void saveTrace(Context context) {
+        if (Reader.trace.size() > 0) {
+            SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd-HH:mm:ss");
+            String currentTimeStamp = dateFormat.format(new Date());
+
+            try {
+                OutputStream outputStream = context.openFileOutput("trace_" + currentTimeStamp + ".bin", Context.MODE_PRIVATE);
+                Reader.trace.writeBinary(outputStream);
+                outputStream.close();
+                Reader.trace.clear();
+            } catch (IOException e) {
+                Log.e("log activity", "Can not write trace: " + e.toString());
+            }
+        }
+    }
+
     public static String readFile(Context context, String fileName) {
         String content = "";
         try {
@@ -29,7 +29,13 @@ import com.ticketapp.auth.app.fragments.ConsolePopup;
 import com.ticketapp.auth.app.fragments.DumpFragment;
 import com.ticketapp.auth.app.fragments.EmulatorFragment;
 import com.ticketapp.auth.app.fragments.KeyListFragment;
+import com.ticketapp.auth.app.ulctools.CardExecutor;
+import com.ticketapp.auth.app.ulctools.CardSession;
+import com.ticketapp.auth.app.ulctools.DefaultKeys;
 import com.ticketapp.auth.app.ulctools.Reader;
+import com.ticketapp.auth.app.ulctools.TagCapabilities;
+import com.ticketapp.auth.app.ulctools.Utilities;
+import com.ticketapp.auth.ticket.WarmUp;
 import com.ticketapp.auth.R;
 
 import java.util.Calendar;
@@ -44,6 +50,7 @@ public class TicketActivity extends Activity implements ActionBar.OnNavigationLi
     // Fragments
     public static FragmentManager fm;
     public static boolean nfcA_available = false;
+    private static boolean warmedUp = false;
     private static EmulatorFragment userMode;
     private static KeyListFragment keyList;
     private static DumpFragment dumpMode;
@@ -67,9 +74,12 @@ public class TicketActivity extends Activity implements ActionBar.OnNavigationLi
 
         context = getApplicationContext();
         outer = context;
+        DefaultKeys.load(outer);
 
         fileManager = new FileManager();
         FileManager.getKeys(outer);
+        FileManager.getKeyScores(outer);
+        warmUp();
         fm = getFragmentManager();
 
         adapter = NfcAdapter.getDefaultAdapter(this);
@@ -117,6 +127,27 @@ public class TicketActivity extends Activity implements ActionBar.OnNavigationLi
         actionBar.setSelectedNavigationItem(0);
     }
 
+    /**
+     * Run the tap path once on the card thread while the UI starts, once per process.
+     */
+    private static void warmUp() {
+        if (warmedUp) return;
+        warmedUp = true;
+        CardExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    String result = WarmUp.run();
+                    Utilities.log(result, false);
+                    Reader.appendHistory("\n" + result + "\n");
+                } catch (Throwable t) {
+                    // The first tap does the work instead, e.g. after an error in a class initializer
+                    Utilities.log("Warm-up failed: " + t, true);
+                }
+            }
+        });
+    }
+
     @Override
     public void onResume() {
         super.onResume();
@@ -195,7 +226,7 @@ public class TicketActivity extends Activity implements ActionBar.OnNavigationLi
 
             Tag tagFromIntent = intent.getParcelableExtra(NfcAdapter.EXTRA_TAG);
             String timestamp = "" + Calendar.getInstance().getTime();
-            Reader.history += "\nNew tag discovered on\n" + timestamp + "\n";
+            Reader.appendHistory("\nNew tag discovered on\n" + timestamp + "\n");
 
             for (int k = 0; k < tagFromIntent.getTechList().length; k++) {
                 if (tagFromIntent.getTechList()[k]
@@ -203,6 +234,7 @@ public class TicketActivity extends Activity implements ActionBar.OnNavigationLi
                     vibrator.vibrate(50);
                     nfcA_available = true;
                     Reader.nfcA_card = NfcA.get(tagFromIntent);
+                    probeCapabilities(tagFromIntent);
                     userMode.setCardAvailable(userMode.isVisible());
                     if (dumpMode.isVisible()) {
                         DumpFragment.update();
@@ -212,6 +244,23 @@ public class TicketActivity extends Activity implements ActionBar.OnNavigationLi
         }
     }
 
+    /**
+     * Probe what a newly seen card supports, on the card thread before the jobs of the
+     * active mode. Cards seen before are not probed again.
+     */
+    private void probeCapabilities(Tag tag) {
+        if (TagCapabilities.get(tag.getId()) != null) return;
+        CardExecutor.submit(new CardExecutor.TapJob<TagCapabilities>() {
+            @Override
+            protected TagCapabilities run(CardSession session) {
+                TagCapabilities capabilities = TagCapabilities.probe(session);
+                Reader.appendHistory("\n" + capabilities.getType().getName() + ", " + capabilities.getPageCount()
+                        + " pages, AUTH0: " + capabilities.getAuth0() + ", AUTH1: " + capabilities.getAuth1() + "\n");
+                return capabilities;
+            }
+        }, null);
+    }
+
     @Override
     public void onAttachFragment(Fragment fragment) {
         super.onAttachFragment(fragment);
@@ -0,0 +1,195 @@
+package com.ticketapp.auth.app.ulctools;
+
+/**
+ * Developed for Aalto University course CS-E4300 Network Security.
+ * Copyright (C) 2021-2022 Aalto University
+ */
+
+import android.nfc.tech.NfcA;
+import android.os.Handler;
+import android.os.Looper;
+import android.widget.Toast;
+
+import com.ticketapp.auth.app.main.TicketActivity;
+
+import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Single thread doing all card I/O.
+ * <p/>
+ * Work with the card is submitted as a {@link TapJob}. Jobs run one after the other on the
+ * card thread, each with its own {@link CardSession} to the card that was discovered when
+ * the job was submitted, or with the session a previous job left open for that card
+ * (see {@link TapJob#keepSession()}). Progress and results are delivered to a
+ * {@link TapCallback} on the UI thread, so the UI keeps responding while the card is read
+ * and the ticket checked.
+ */
+public class CardExecutor {
+
+    private static final ExecutorService executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            return new Thread(r, "card-io");
+        }
+    });
+    private static final Handler ui = new Handler(Looper.getMainLooper());
+
+    // Session left open by the last job, only used on the card thread
+    private static CardSession kept;
+    private static NfcA keptCard;
+
+    /**
+     * Receives the progress and the outcome of a job, on the UI thread.
+     */
+    public interface TapCallback<T> {
+        void onProgress(String message);
+
+        void onResult(T result);
+
+        void onError(Exception e);
+    }
+
+    /**
+     * Work done with the card on the card thread.
+     */
+    public static abstract class TapJob<T> {
+
+        private TapCallback<T> callback;
+
+        /**
+         * @param session open session with the card, closed after the job
+         * @return result handed to {@link TapCallback#onResult(Object)}
+         * @throws Exception handed to {@link TapCallback#onError(Exception)}
+         */
+        protected abstract T run(CardSession session) throws Exception;
+
+        /**
+         * @return true to leave the session open for the next job with the same card,
+         * e.g. after authenticating ahead of time
+         */
+        protected boolean keepSession() {
+            return false;
+        }
+
+        /**
+         * Show the progress of the job, e.g. before a long step.
+         *
+         * @param message progress handed to {@link TapCallback#onProgress(String)}
+         */
+        protected void publishProgress(final String message) {
+            if (callback == null) return;
+            ui.post(new Runnable() {
+                @Override
+                public void run() {
+                    callback.onProgress(message);
+                }
+            });
+        }
+    }
+
+    /**
+     * Run a job with the card discovered last.
+     *
+     * @param job      work to do with the card
+     * @param callback receives progress and result on the UI thread, may be null
+     * @return future of the job result
+     */
+    public static <T> Future<T> submit(final TapJob<T> job, final TapCallback<T> callback) {
+        // The card is taken now, a card discovered later gets its own jobs
+        final NfcA card = Reader.nfcA_card;
+        job.callback = callback;
+        return executor.submit(new Callable<T>() {
+            @Override
+            public T call() throws Exception {
+                CardSession session = takeKeptSession(card);
+                if (session == null) session = Reader.openSession(card);
+                boolean keep = false;
+                try {
+                    if (session == null) throw new IOException("Card not found");
+                    final T result = job.run(session);
+                    keep = job.keepSession();
+                    if (callback != null) {
+                        ui.post(new Runnable() {
+                            @Override
+                            public void run() {
+                                callback.onResult(result);
+                            }
+                        });
+                    }
+                    return result;
+                } catch (final Exception e) {
+                    Utilities.log("Card job failed: " + e, true);
+                    if (callback != null) {
+                        ui.post(new Runnable() {
+                            @Override
+                            public void run() {
+                                callback.onError(e);
+                            }
+                        });
+                    }
+                    throw e;
+                } finally {
+                    if (keep) {
+                        kept = session;
+                        keptCard = card;
+                    } else if (session != null) {
+                        session.close();
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Run work that needs no card on the card thread, after the jobs submitted before,
+     * e.g. to warm up the per-thread state of the card and ticket code before the first tap.
+     * Nobody waits for the result, so anything the work throws is logged.
+     *
+     * @param task work to run
+     */
+    public static void execute(final Runnable task) {
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    task.run();
+                } catch (Throwable t) {
+                    Utilities.log("Card thread task failed: " + t, true);
+                }
+            }
+        });
+    }
+
+    /**
+     * Take the session left open for the card, closing a session left open for another card.
+     */
+    private static CardSession takeKeptSession(NfcA card) {
+        CardSession session = kept;
+        NfcA sessionCard = keptCard;
+        kept = null;
+        keptCard = null;
+        if (session == null) return null;
+        if (sessionCard == card && session.getTransport().isConnected()) return session;
+        session.close();
+        return null;
+    }
+
+    /**
+     * Show a toast from any thread.
+     *
+     * @param text text of the toast
+     */
+    public static void toast(final String text) {
+        ui.post(new Runnable() {
+            @Override
+            public void run() {
+                Toast.makeText(TicketActivity.outer, text, Toast.LENGTH_SHORT).show();
+            }
+        });
+    }
+}
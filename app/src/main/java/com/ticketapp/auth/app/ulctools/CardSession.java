@@ -0,0 +1,992 @@
+package com.ticketapp.auth.app.ulctools;
+
+/**
+ * Developed for Aalto University course CS-E4300 Network Security.
+ * Copyright (C) 2021-2022 Aalto University
+ */
+
+import android.util.Log;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Connection to one card for the duration of one tap.
+ * <p/>
+ * The link is opened once in {@link #open()} and kept until {@link #close()}.
+ * The session owns everything that is only valid while the card stays in the field:
+ * the authentication state, the detected card type and the page cache.
+ * <p/>
+ * Failed page commands are retried according to the {@link RetryPolicy} of the session:
+ * the link is reopened and the last successful authentication is repeated before
+ * sending the command again. Every attempt is counted.
+ * <p/>
+ * Commands and responses are stored into {@link Reader#history}.
+ */
+public class CardSession implements Closeable {
+
+    private static final int COUNTER_PAGE = 41;
+
+    private final CardTransport card;
+    private final boolean safeMode;
+    // Safe mode remap table, null when safe mode is off
+    private final int[] pageMap;
+    private PageCache pageCache = new PageCache(44);
+    private TagType tagType;
+    private boolean authenticated = false;
+    private TransceiveTrace trace;
+    private boolean opened = false;
+    private long openedNanos;
+    private Random nonceSource;
+
+    private RoundTripEstimator roundTrips;
+    private int timeout = -1;
+
+    private RetryPolicy retryPolicy = RetryPolicy.DEFAULT;
+    private byte[] authenticatedKey;
+    private boolean halted = false;
+    private int attempts = 0;
+    private int retries = 0;
+    private int reconnects = 0;
+    private int reauthentications = 0;
+    private int failures = 0;
+
+    /**
+     * @param card link to the discovered card
+     */
+    public CardSession(CardTransport card) {
+        this.card = card;
+        this.safeMode = Reader.safeMode;
+        this.pageMap = safeMode ? Reader.getSafeModeMap() : null;
+    }
+
+    /**
+     * Open the link to the card.
+     *
+     * @return boolean value of success
+     */
+    public boolean open() {
+        try {
+            if (!card.isConnected()) {
+                card.connect();
+                // The link starts with the platform default timeout
+                timeout = -1;
+            }
+            if (!opened) openedNanos = System.nanoTime();
+            if (!opened && trace != null) {
+                // Wall clock time of the tap and UID of the card, the ticket logic depends on them
+                byte[] uid = card.getId() != null ? card.getId() : new byte[0];
+                trace.recordEvent(TransceiveTrace.SESSION, ByteBuffer.allocate(8 + uid.length)
+                        .putLong(System.currentTimeMillis()).put(uid).array());
+            }
+            opened = true;
+            return true;
+        } catch (IOException i) {
+            i.printStackTrace();
+            return false;
+        }
+    }
+
+    /**
+     * Close the link to the card. Authentication and cached pages are dropped.
+     */
+    @Override
+    public void close() {
+        if (retries > 0 || failures > 0) {
+            Reader.appendHistory("\n" + getRetryStatistics() + "\n");
+        }
+        pageCache.clear();
+        authenticated = false;
+        authenticatedKey = null;
+        try {
+            card.close();
+        } catch (IOException i) {
+            i.printStackTrace();
+        }
+    }
+
+    /**
+     * Close and open the link again, e.g. after the card halted because of a NAK.
+     * The card stays the same, so cached pages are kept.
+     *
+     * @return boolean value of success
+     */
+    public boolean reconnect() {
+        authenticated = false;
+        halted = false;
+        try {
+            card.close();
+        } catch (IOException i) {
+            i.printStackTrace();
+        }
+        return open();
+    }
+
+    public boolean isSafeMode() {
+        return safeMode;
+    }
+
+    public boolean isAuthenticated() {
+        return authenticated;
+    }
+
+    /**
+     * @param key key as given to {@link #authenticate(byte[], boolean)}
+     * @return true if the session is authenticated with this key
+     */
+    public boolean isAuthenticatedWith(byte[] key) {
+        return authenticated && Arrays.equals(authenticatedKey, key);
+    }
+
+    /**
+     * Get the UID as stored in pages 0-1, built from the UID of anticollision
+     * without reading the card.
+     *
+     * @return 8 bytes of pages 0-1, null if the card does not have a 7-byte UID
+     */
+    public byte[] getUidPages() {
+        byte[] id = card.getId();
+        if (id == null || id.length != 7) return null;
+        byte[] pages = new byte[8];
+        System.arraycopy(id, 0, pages, 0, 3);
+        // Check byte of the cascade tag 0x88 and the first three bytes
+        pages[3] = (byte) (0x88 ^ id[0] ^ id[1] ^ id[2]);
+        System.arraycopy(id, 3, pages, 4, 4);
+        return pages;
+    }
+
+    public CardTransport getTransport() {
+        return card;
+    }
+
+    public PageCache getPageCache() {
+        return pageCache;
+    }
+
+    /**
+     * @param retryPolicy how failed page commands are retried, RetryPolicy.NONE to not retry
+     */
+    public void setRetryPolicy(RetryPolicy retryPolicy) {
+        this.retryPolicy = retryPolicy;
+    }
+
+    /**
+     * @return number of commands sent through the retry path, including retries
+     */
+    public int getAttempts() {
+        return attempts;
+    }
+
+    public int getRetries() {
+        return retries;
+    }
+
+    /**
+     * @return number of times the link was reopened to recover a halted card
+     */
+    public int getReconnects() {
+        return reconnects;
+    }
+
+    public int getReauthentications() {
+        return reauthentications;
+    }
+
+    /**
+     * @return number of commands that failed after all allowed attempts
+     */
+    public int getFailures() {
+        return failures;
+    }
+
+    public String getRetryStatistics() {
+        return "attempts: " + attempts + ", retries: " + retries + ", reconnects: " + reconnects
+                + ", re-authentications: " + reauthentications + ", failures: " + failures;
+    }
+
+    /**
+     * Record every command of this session into the given trace.
+     *
+     * @param trace trace to record to, null to stop recording
+     */
+    public void setTrace(TransceiveTrace trace) {
+        this.trace = trace;
+    }
+
+    /**
+     * Mark in the trace what the session is used for from here on, so the trace can be
+     * replayed tap by tap, see {@link TraceReplay#getSessionKinds()}.
+     *
+     * @param kind one of the TransceiveTrace.KIND_ values
+     */
+    public void markKind(int kind) {
+        if (trace != null) trace.recordEvent(TransceiveTrace.KIND, new byte[]{(byte) kind});
+    }
+
+    /**
+     * Set the transceive timeout of every command from the round trips measured so far,
+     * and add the round trips of this session to the estimate.
+     *
+     * @param roundTrips estimate shared between sessions, null to keep the platform default
+     */
+    public void setRoundTripEstimator(RoundTripEstimator roundTrips) {
+        this.roundTrips = roundTrips;
+    }
+
+    /**
+     * Use the given source for the authentication challenges (RndA) instead of the
+     * {@link NoncePool}. Meant for replaying recorded sessions only.
+     *
+     * @param nonceSource source of the challenges, null for the nonce pool
+     */
+    public void setNonceSource(Random nonceSource) {
+        this.nonceSource = nonceSource;
+    }
+
+    /**
+     * Send a command to the card. Every command of the session goes through here.
+     */
+    private byte[] transceive(byte[] cmd) throws IOException {
+        if (trace == null && roundTrips == null) return card.transceive(cmd);
+
+        int kind = RoundTripEstimator.kindOf(cmd);
+        if (roundTrips != null) {
+            int t = roundTrips.getTimeout(kind);
+            if (t != timeout) {
+                card.setTimeout(t);
+                timeout = t;
+            }
+        }
+        long start = System.nanoTime();
+        try {
+            byte[] response = card.transceive(cmd);
+            long duration = System.nanoTime() - start;
+            if (roundTrips != null) roundTrips.record(kind, duration);
+            if (trace != null) trace.record(cmd, response, start, duration, TransceiveTrace.OK);
+            return response;
+        } catch (IOException e) {
+            // A timed out command goes to the retry path like any other failure
+            if (trace != null) trace.record(cmd, null, start, System.nanoTime() - start, TransceiveTrace.FAILED);
+            throw e;
+        }
+    }
+
+    /**
+     * Send a page command to the card, retrying it according to the retry policy.
+     * <p/>
+     * The card halts after a failed command, so a halted card is recovered before
+     * sending, also when the failed command itself is not retried.
+     *
+     * @param cmd   command to send
+     * @param retry false for commands that must not be sent twice, e.g. counter increments
+     */
+    private byte[] transceiveWithRetry(byte[] cmd, boolean retry) throws IOException {
+        int attempt = 0;
+        while (true) {
+            attempt++;
+            attempts++;
+            try {
+                // A failed reconnect or re-authentication is a failed attempt too
+                if (halted) recover();
+                return transceive(cmd);
+            } catch (IOException e) {
+                halted = true;
+                if (!retry || !retryPolicy.allowsRetry(attempt, retries, openedNanos)) {
+                    failures++;
+                    throw e;
+                }
+                retries++;
+            }
+        }
+    }
+
+    /**
+     * Tell the session that the authentication key of the card was written. The session
+     * stays authenticated, but a recovery later in the tap has to authenticate with the
+     * new key, see {@link #recover()}.
+     *
+     * @param key key as given to {@link #authenticate(byte[], boolean)}, written to pages 44-47
+     */
+    public void keyWritten(byte[] key) {
+        if (authenticated) authenticatedKey = key.clone();
+    }
+
+    /**
+     * Reopen the link to a halted card and repeat the last successful authentication.
+     */
+    private void recover() throws IOException {
+        byte[] key = authenticatedKey;
+        reconnects++;
+        if (!reconnect()) throw new IOException("Reconnect failed");
+        if (key != null) {
+            reauthentications++;
+            if (!authenticate(key, false)) throw new IOException("Re-authentication failed");
+        }
+    }
+
+    /**
+     * Get the physical page where a page is stored, taking safe mode into account.
+     *
+     * @param page number of page
+     * @return number of page on the card
+     */
+    public int resolvePage(int page) {
+        if (pageMap == null || page >= pageMap.length) return page;
+        return pageMap[page];
+    }
+
+    /**
+     * Read a single page from card.
+     *
+     * @param page          number of page
+     * @param disregardSafe if true, read the real data no matter if safe mode is on
+     * @return byte array containing page data
+     */
+    public byte[] readPage(int page, boolean disregardSafe) {
+        byte[] cmd_read = new byte[]{(byte) 0x30, (byte) 0x00};
+        if (!disregardSafe) {
+            page = resolvePage(page);
+        }
+        cmd_read[1] = (byte) page;
+
+        byte[] response = new byte[0];
+
+        try {
+            response = transceiveWithRetry(cmd_read, true);
+        } catch (IOException e) {
+            Reader.appendHistory("\n\nReading failed - IOException\n");
+            Reader.appendHistory("Error when reading page " + page + "\n--------------------------------");
+        }
+        return response;
+    }
+
+    /**
+     * Read a 4-page block without retrying, e.g. for probing pages that may be protected.
+     *
+     * @param page first page of the block
+     * @return the 16 bytes read, null if the card did not answer
+     */
+    byte[] readPageOnce(int page) {
+        try {
+            return transceiveWithRetry(new byte[]{(byte) 0x30, (byte) page}, false);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Read the card memory to a given array with authentication or without authentication.
+     * <p/>
+     * The whole memory of the detected card type is read, see {@link #getTagType()}.
+     * Without authentication, reading stops before pages known to be read protected.
+     *
+     * @param target  byte array where the data is stored, at least 4 bytes per page of the card
+     * @param auth    boolean value whether to authenticate while reading or not
+     * @param display boolean value defining whether to show the commands and responses in the console
+     * @return boolean value of success
+     */
+    public boolean readMemory(byte[] target, boolean auth, boolean display) {
+        return readMemory(target, auth ? Collections.singletonList(Reader.authKey) : null, display);
+    }
+
+    /**
+     * Read the card memory to a given array, authenticating with the first of the given
+     * keys that works, see {@link KeyRanking}. The key in Reader class variable "authKey"
+     * is tried too, first among the keys with the same score.
+     *
+     * @param target  byte array where the data is stored, at least 4 bytes per page of the card
+     * @param keys    keys to try, as given to {@link Reader#setAuthKey(String)}, null to read without authentication
+     * @param display boolean value defining whether to show the commands and responses in the console
+     * @return boolean value of success
+     */
+    public boolean readMemory(byte[] target, List<String> keys, boolean display) {
+        boolean auth_result = false;
+        Arrays.fill(target, (byte) 0x00);
+        TagType type = getTagType();
+        // If authentication is enabled, do it
+        if (keys != null) {
+            if (display) Reader.appendHistory("\nauthentication enabled\n");
+            // Boolean value: was authentication successful?
+            auth_result = Reader.keyRanking.authenticate(this, keys, Reader.authKey, display) != null;
+            if (!auth_result) {
+                Log.d("auth", "authentication ended in IOEx");
+                if (!card.isConnected()) return false;
+            }
+        }
+        if (type == TagType.ULTRALIGHT_C) {
+            if (!auth_result) {
+                if (display) Reader.appendHistory("\nreading " + type.getName() + "\nwithout authentication \n");
+            } else if (display) Reader.appendHistory("\nreading " + type.getName() + "\nwith authentication\n");
+
+        } else {
+            if (display) Reader.appendHistory("\nreading " + type.getName() + "\n");
+        }
+
+        int pages = Math.min(type.getPageCount(), target.length / 4);
+        byte[] memory = new byte[pages * 4];
+        int readable = authenticated ? pages : Math.min(pages, getCapabilities().getReadablePages());
+        int read = readRange(0, readable, memory, 0, display);
+
+        // i is the page shown to the user, a could be mapped to elsewhere because of safemode
+        for (int i = 0; i < read; i++) {
+            int a = resolvePage(i);
+            if (a < read) System.arraycopy(memory, a * 4, target, i * 4, 4);
+        }
+        if (read < pages) {
+            // If the page reading was interrupted because of auth, the rest
+            // of the memory will also be unreadable.
+            CardExecutor.toast("Reading ended on page " + read);
+            Reader.appendHistory("\nreading page " + read + " failed - IOException\n");
+            Reader.appendHistory("\n\nReading finished on " + type.getName() + "\n--------------------------------");
+            Utilities.log("Error when reading page " + read + " in readMemory()", true);
+            return false;
+        }
+        if (display) {
+            Reader.appendHistory("\n\nReading finished on " + type.getName() + "\n--------------------------------");
+        }
+        return true;
+    }
+
+    /**
+     * Read pages as addressed by the application, with safe mode applied.
+     * <p/>
+     * Pages already in the page cache are not read again. The other pages are read in runs
+     * of pages that are consecutive on the card, see {@link #readRange}, so a remapped page
+     * only splits the run it is in.
+     *
+     * @param startPage     first page to read
+     * @param numberOfPages how many pages to read
+     * @param target        byte array where the data is stored
+     * @param targetPos     starting position in the target array
+     * @param display       boolean value defining whether to show the commands and responses in the console
+     * @return number of pages read, less than numberOfPages if reading failed
+     */
+    public int readPages(int startPage, int numberOfPages, byte[] target, int targetPos, boolean display) {
+        int i = 0;
+        while (i < numberOfPages) {
+            int page = resolvePage(startPage + i);
+            if (pageCache.read(page, target, targetPos + i * 4)) {
+                i++;
+                continue;
+            }
+            int run = 1;
+            while (i + run < numberOfPages && resolvePage(startPage + i + run) == page + run) {
+                run++;
+            }
+            int read = readRange(page, run, target, targetPos + i * 4, display);
+            if (read < run) return i + read;
+            i += run;
+        }
+        return numberOfPages;
+    }
+
+    /**
+     * Read consecutive pages from the card with as few commands as possible.
+     * <p/>
+     * Cards supporting FAST_READ (0x3A) are read with one command per
+     * {@link #getFastReadPages()} pages, other cards with one READ (0x30) per 4 pages.
+     * Safe mode is not applied, the pages are the real pages on the card.
+     * The pages read are stored in the page cache.
+     *
+     * @param startPage     first page to read
+     * @param numberOfPages how many pages to read
+     * @param target        byte array where the data is stored
+     * @param targetPos     starting position in the target array
+     * @param display       boolean value defining whether to show the commands and responses in the console
+     * @return number of pages read, less than numberOfPages if reading failed
+     */
+    public int readRange(int startPage, int numberOfPages, byte[] target, int targetPos, boolean display) {
+        TagType type = getTagType();
+        int endPage = startPage + numberOfPages;
+        int chunk = type.supportsFastRead() ? getFastReadPages() : PageCache.BLOCK_PAGES;
+        int page = startPage;
+
+        while (page < endPage) {
+            int count = Math.min(chunk, endPage - page);
+            byte[] cmd;
+            if (type.supportsFastRead()) {
+                cmd = new byte[]{(byte) 0x3A, (byte) page, (byte) (page + count - 1)};
+            } else {
+                cmd = new byte[]{(byte) 0x30, (byte) page};
+            }
+            if (display) Reader.appendHistory("\n" + Dump.hex(cmd) + " >> ");
+
+            byte[] response;
+            try {
+                response = transceiveWithRetry(cmd, true);
+            } catch (IOException e) {
+                Reader.appendHistory("\n\nReading failed - IOException\n");
+                Reader.appendHistory("Error when reading page " + page + "\n--------------------------------");
+                return page - startPage;
+            }
+            if (response.length < count * 4) {
+                Reader.appendHistory("\nreading page " + page + " failed - NAK\n");
+                return page - startPage;
+            }
+            pageCache.store(page, response, 0, count);
+            System.arraycopy(response, 0, target, targetPos + (page - startPage) * 4, count * 4);
+
+            if (display) {
+                byte[] pages = new byte[count * 4];
+                System.arraycopy(response, 0, pages, 0, pages.length);
+                Reader.appendHistory("<< " + Dump.hex(pages));
+            }
+            page += count;
+        }
+        return numberOfPages;
+    }
+
+    /**
+     * Maximum number of pages fitting in one FAST_READ response.
+     */
+    private int getFastReadPages() {
+        int max = card.getMaxTransceiveLength() / 4;
+        return Math.max(PageCache.BLOCK_PAGES, Math.min(max, 60));
+    }
+
+    /**
+     * Try to erase card content from page 4 to page 39.
+     *
+     * @param auth boolean value whether to authenticate before erasing
+     * @return boolean value of success
+     */
+    public boolean erase(boolean auth) {
+        byte[] cmd_erase = new byte[]{(byte) 0xa2, (byte) 0x00,
+                (byte) 0x00, (byte) 0x00, (byte) 0x00, (byte) 0x00};
+        boolean isAuth = false;
+        ArrayList<Integer> faults = new ArrayList<Integer>();
+        pageCache.clear();
+        Reader.appendHistory("\nerasing card...\n");
+        if (auth) {
+            Reader.appendHistory("\ntrying to authenticate card before erase...");
+            isAuth = authenticate(false);
+            if (!isAuth) {
+                Reader.appendHistory(" authentication failed, trying to erase anyway\n");
+            } else Reader.appendHistory(" authentication OK, proceeding with erase\n");
+        }
+        for (int page = 4; page < 40; page++) {
+            cmd_erase[1] = (byte) page;
+            try {
+                // Reconnects and authenticates again after a failed page
+                transceiveWithRetry(cmd_erase, true);
+            } catch (IOException e) {
+                Reader.appendHistory("\nerasing page " + page + " failed - IOException\n");
+                faults.add(page);
+            }
+        }
+        if (halted) reconnect();
+        String msg;
+        if (faults.size() == 0) {
+            msg = "Erase successful";
+        } else {
+            if (faults.size() > 1)
+                msg = "Erase partial - pages " + faults + " could not be erased.";
+            else msg = "Erase partial - page " + faults.get(0) + " could not be erased.";
+
+        }
+        Reader.appendHistory("\n" + msg + "\n--------------------------------");
+
+        return true;
+    }
+
+    /**
+     * Erase card content from page 4 to page 39, writing only the pages that are not empty.
+     * <p/>
+     * The pages are read first in 4-page blocks and only the pages holding data are written.
+     * Pages that cannot be read, e.g. because they are read protected, are written anyway.
+     * Authentication is done once before reading; after a failed page the retry path
+     * reconnects and authenticates again.
+     *
+     * @param auth boolean value whether to authenticate before erasing
+     * @return the pages cleared, skipped and failed
+     */
+    public EraseResult eraseChanged(boolean auth) {
+        final int first = 4;
+        final int pages = 36;
+        byte[] cmd_erase = new byte[]{(byte) 0xa2, (byte) 0x00,
+                (byte) 0x00, (byte) 0x00, (byte) 0x00, (byte) 0x00};
+        Reader.appendHistory("\nerasing non-empty pages...\n");
+        boolean isAuth = false;
+        if (auth) {
+            isAuth = authenticate(false);
+            if (!isAuth) {
+                Reader.appendHistory("authentication failed, trying to erase anyway\n");
+            }
+        }
+        EraseResult result = new EraseResult(isAuth);
+
+        byte[] current = new byte[pages * 4];
+        int readable = isAuth ? pages : Math.max(0, Math.min(pages, getCapabilities().getReadablePages() - first));
+        int read = readRange(first, readable, current, 0, false);
+
+        for (int i = 0; i < pages; i++) {
+            int page = first + i;
+            if (i < read && current[i * 4] == 0 && current[i * 4 + 1] == 0
+                    && current[i * 4 + 2] == 0 && current[i * 4 + 3] == 0) {
+                result.skipped(page);
+                continue;
+            }
+            cmd_erase[1] = (byte) page;
+            pageCache.invalidate(page);
+            try {
+                transceiveWithRetry(cmd_erase, true);
+                result.cleared(page);
+            } catch (IOException e) {
+                Reader.appendHistory("\nerasing page " + page + " failed - IOException\n");
+                result.failed(page);
+            }
+        }
+        if (halted) reconnect();
+        Reader.appendHistory("\n" + result + "\n--------------------------------");
+        return result;
+    }
+
+    /**
+     * Update card data on a defined page.
+     * <p/>
+     * Commands and responses are stored into history.
+     *
+     * @param data byte array where the data is stored
+     * @param dst  destination page (0 - 47)
+     * @param auth boolean value whether to authenticate while writing or not
+     * @return boolean value of success
+     */
+    public boolean updatePage(byte[] data, int dst, boolean auth) {
+        Reader.appendHistory("\nwriting...\n");
+        byte[] cmd_ulwrite = new byte[]{(byte) 0xa2, (byte) 0x00,
+                (byte) 0x00, (byte) 0x00, (byte) 0x00, (byte) 0x00};
+        try {
+            if (auth) {
+                authenticate(false);
+            }
+            if (resolvePage(dst) != dst) {
+                Reader.appendHistory("\nSafe mode on, write to page " + dst + "\nmapped to " + resolvePage(dst) + "\n");
+                dst = resolvePage(dst);
+                byte[] current = readPage(dst, true);
+                if (current.length < 4) {
+                    Utilities.log("Failed to read page " + dst + " before writing in updatePage()", true);
+                    return false;
+                }
+                for (int i = 0; i < 4; i++) {
+                    data[i] = (byte) ((int) data[i] | (int) current[i]);
+                }
+            }
+            cmd_ulwrite[1] = (byte) dst;
+            System.arraycopy(data, 0, cmd_ulwrite, 2, 4);
+            pageCache.invalidate(dst);
+            // Without the data of key writes, like the trace
+            Reader.appendHistory("\n" + Dump.hex(TransceiveTrace.redact(cmd_ulwrite)) + " >>\n");
+
+            // A counter increment may have been applied even if the response was lost
+            byte[] response = transceiveWithRetry(cmd_ulwrite, dst != COUNTER_PAGE);
+            TagCapabilities.pageWritten(card.getId(), dst, data);
+            Reader.appendHistory("\n" + Dump.hex(response) + " <<\n");
+            Reader.appendHistory("\n" + "writing finished\n--------------------------------");
+            return true;
+
+        } catch (IOException e) {
+            Reader.appendHistory("\n" + "Writing failed: IOException\nTrying to write on protected pages without successful authentication?\n--------------------------------");
+            Utilities.log("Write error at page " + dst + " in updatePage(): " + e, true);
+        }
+        return false;
+    }
+
+    /**
+     * Lock pages.
+     * Locking is limited to pages 4-39 in this assignment.
+     * <p/>
+     * Locking pages 4-15 is done by giving the page as a parameter, but
+     * pages 16-39 (due Ultralight C to specification) are locked in 4 page series:
+     * 16-19
+     * 20-23
+     * 24-27
+     * 28-31
+     * 32-35
+     * 36-39
+     * To lock any of the series give the first page as parameter, giving 16 will lock pages 16-19.
+     * <p/>
+     * No blocking functionality.
+     *
+     * @param page page to lock
+     * @return boolean value of success
+     */
+    public boolean lockPage(int page) {
+        if (page >= 4 && page <= 15) {
+            return lockPages(new int[]{page});
+        } else if (page >= 16 && page <= 36) {
+            if (page % 4 != 0) {
+                Reader.appendHistory("\nSetting lock to pages " + page + "-" + (page + 4) + "\n");
+                Reader.appendHistory("failed. Invalid parameter: " + page + ", when locking pages 16-39,\ngive the starting page (16,20,24,28,32,36)\n");
+                return false;
+            }
+            return lockPages(new int[]{page, page + 1, page + 2, page + 3});
+        }
+        return false;
+    }
+
+    /**
+     * Lock a set of pages with at most one write to each lock page.
+     * <p/>
+     * The lock bits of all pages are combined: pages 4-15 into the lock bytes at page 2,
+     * the 4 page series of pages 16-39 into the lock byte at page 40. A series is only
+     * locked if all of its pages are given. Nothing is written if any page is invalid.
+     *
+     * @param pages pages to lock, in any order
+     * @return boolean value of success
+     */
+    public boolean lockPages(int[] pages) {
+        byte[] staticLock = {(byte) 0x00, (byte) 0x00, (byte) 0x00, (byte) 0x00};
+        byte[] dynamicLock = {(byte) 0x00, (byte) 0x00, (byte) 0x00, (byte) 0x00};
+        boolean[] requested = new boolean[40];
+
+        for (int page : pages) {
+            if (page < 4 || page > 39) {
+                Reader.appendHistory("\nLocking failed. Invalid page: " + page + ", only pages 4-39 can be locked\n--------------------------------\n");
+                return false;
+            }
+            requested[page] = true;
+        }
+        for (int page = 4; page < 16; page++) {
+            if (!requested[page]) continue;
+            if (page <= 7) staticLock[2] |= (byte) (1 << page);
+            else staticLock[3] |= (byte) (1 << (page - 8));
+        }
+        for (int first = 16; first < 40; first += 4) {
+            int series = 0;
+            for (int page = first; page < first + 4; page++) {
+                if (requested[page]) series++;
+            }
+            if (series == 0) continue;
+            if (series < 4) {
+                Reader.appendHistory("\nLocking failed. Pages " + first + "-" + (first + 3) + " can only be locked together\n--------------------------------\n");
+                return false;
+            }
+            int bit = first <= 24 ? (first / 4) - 3 : (first / 4) - 2;
+            dynamicLock[0] |= (byte) (1 << bit);
+        }
+
+        boolean status = true;
+        if (staticLock[2] != 0 || staticLock[3] != 0) {
+            Log.d("Lock", Dump.binary(staticLock[2]) + " " + Dump.binary(staticLock[3]));
+            Reader.appendHistory("\nSetting lock bits at page 2 (0x02)\n");
+            status = updatePage(staticLock, 2, false);
+        }
+        if (status && dynamicLock[0] != 0) {
+            Log.d("Lock", Dump.binary(dynamicLock[0]));
+            Reader.appendHistory("\nSetting lock bits at page 40 (0x28)\n");
+            status = updatePage(dynamicLock, 40, false);
+        }
+        if (status) {
+            Reader.appendHistory("\nLocking successful\n--------------------------------\n");
+        } else Reader.appendHistory("\nLocking failed\n--------------------------------\n");
+        return status;
+    }
+
+    /**
+     * Authenticate with the key stored in Reader class variable "authKey".
+     *
+     * @param display boolean value defining whether to show the commands and responses in the console
+     * @return boolean value telling if the authentication worked
+     */
+    public boolean authenticate(boolean display) {
+        if (display) Reader.appendHistory("\nkey: \n" + Reader.authKey + "\n");
+        return authenticate(Reader.getKey(Reader.authKey), display);
+    }
+
+    /**
+     * Create an authenticated session with the card with a key given as parameter.
+     *
+     * @param input_key byte array containing the authentication key
+     * @param display   boolean value defining whether to show the commands and responses in the console
+     * @return boolean value telling if the authentication worked
+     */
+    public boolean authenticate(byte[] input_key, boolean display) {
+        return authenticate(input_key, TripleDES.forCardKey(input_key), display);
+    }
+
+    /**
+     * Create an authenticated session with the card with a key whose 3DES key schedule
+     * was prepared before.
+     *
+     * @param input_key byte array containing the authentication key
+     * @param schedule  the key prepared with {@link TripleDES#forCardKey(byte[])}
+     * @param display   boolean value defining whether to show the commands and responses in the console
+     * @return boolean value telling if the authentication worked
+     */
+    public boolean authenticate(byte[] input_key, TripleDES.Key schedule, boolean display) {
+        authenticated = false;
+        authenticatedKey = null;
+        if (schedule != null && exchangeAuthentication(input_key, schedule, display)) {
+            authenticated = true;
+            authenticatedKey = input_key.clone();
+            return true;
+        }
+        // The card halts after a failed authentication, open the link again for the next command
+        reconnect();
+        return false;
+    }
+
+    /**
+     * Run the 3DES mutual authentication (0x1A / 0xAF) with the card.
+     */
+    private boolean exchangeAuthentication(byte[] input_key, TripleDES.Key key, boolean display) {
+        if (display)
+            Reader.appendHistory("\n" + "authenticating\n");
+
+        byte[] iv1 = {0, 0, 0, 0, 0, 0, 0, 0};
+        String str = "";
+
+        try {
+            // message exchange 1
+            byte[] cmd_auth = new byte[]{0x1A, 0x00};
+
+            str = "cmd_auth sent";
+            byte[] response1 = transceive(cmd_auth);
+            if (display)
+                Reader.appendHistory("\n>>\n" + Dump.hex(cmd_auth) + "\n\n" + Dump.hex(response1) + " <<\n\n");
+
+            byte[] enc_randB = new byte[8];
+            System.arraycopy(response1, 1, enc_randB, 0, 8);
+            byte[] randB = TripleDES.decrypt(iv1, key, enc_randB);
+
+            if (display) Reader.appendHistory("randB:\n" + Dump.hex(randB) + "\n\n");
+
+            byte[] randA;
+            if (nonceSource != null) {
+                randA = new byte[8];
+                nonceSource.nextBytes(randA);
+            } else {
+                randA = NoncePool.getDefault().next();
+            }
+            if (trace != null && trace.isRecordingNonces()) {
+                trace.recordEvent(TransceiveTrace.NONCE, randA);
+            }
+
+            if (display) Reader.appendHistory("randA:\n" + Dump.hex(randA) + "\n\n");
+
+            byte[] randCon = new byte[16];
+            System.arraycopy(randA, 0, randCon, 0, 8);
+            System.arraycopy(randB, 1, randCon, 8, 7);
+            System.arraycopy(randB, 0, randCon, 15, 1);
+
+            byte[] enc_randCon = TripleDES.encrypt(enc_randB, key, randCon);
+
+            // prepare concat
+            byte[] cmd_con = new byte[17];
+            cmd_con[0] = (byte) 0xAF;
+            System.arraycopy(enc_randCon, 0, cmd_con, 1, 16);
+
+            str = "cmd_con sent";
+            byte[] response2 = transceive(cmd_con);
+
+            if (display)
+                Reader.appendHistory("\n>>\n" + Dump.hex(cmd_con) + "\n\n" + Dump.hex(response2) + " <<\n\n");
+
+            // 0x00 and ek(RndA'), anything shorter is a NAK. Checking the bytes themselves
+            // rejected a good answer whenever the first two happened to add up to zero
+            if (response2.length < 9) {
+                if (display) {
+                    Reader.appendHistory("\nAuthentication failed. Wrong key?\n");
+                }
+                return false;
+            }
+
+            //  verify received randA
+            byte[] iv3 = new byte[8];
+            System.arraycopy(cmd_con, 9, iv3, 0, 8);
+            byte[] enc_randAp = new byte[8];
+            System.arraycopy(response2, 1, enc_randAp, 0, 8);
+
+            byte[] dec_randAp = TripleDES.decrypt(iv3, key, enc_randAp);
+            byte[] dec_randA = new byte[8];
+            System.arraycopy(dec_randAp, 0, dec_randA, 1, 7);
+            dec_randA[0] = dec_randAp[7];
+            for (int i = 0; i < 8; i++) {
+                if (dec_randA[i] != randA[i]) {
+                    return false;
+                }
+            }
+            if (display) {
+                Reader.appendHistory("decrypted randA:\n" + Dump.hex(dec_randA) + "\nmatches randA\n");
+            }
+            if (display) {
+                Reader.appendHistory("\nAuthentication OK\n--------------------------------\n");
+            }
+            return true;
+
+        } catch (IndexOutOfBoundsException i) {
+            Reader.appendHistory("\nAuthentication failed. Wrong key?\n");
+            Log.d("E", i.toString());
+            return false;
+        } catch (IOException e) {
+            Reader.appendHistory("\nAuthentication failed. Wrong key?\n");
+            Log.d("Exception", "IOException at " + str);
+            return false;
+        }
+    }
+
+    /**
+     * Get the type of the card.
+     * <p/>
+     * The type is taken from the capabilities cache if the card was probed, otherwise it is
+     * detected once per session: cards reported as plain Ultralight are asked for their
+     * version to tell Ultralight EV1 and NTAG21x apart.
+     * The page cache is resized to the memory of the card.
+     *
+     * @return detected card type
+     */
+    public TagType getTagType() {
+        if (tagType != null) return tagType;
+
+        TagCapabilities capabilities = TagCapabilities.get(card.getId());
+        tagType = capabilities != null ? capabilities.getType() : detectTagType();
+        if (pageCache.getPageCount() != tagType.getPageCount()) {
+            pageCache = new PageCache(tagType.getPageCount());
+        }
+        return tagType;
+    }
+
+    /**
+     * Get what the card supports, from the capabilities probed when the card was discovered.
+     * If the card was not probed, only the type is known.
+     *
+     * @return capabilities of the card
+     */
+    public TagCapabilities getCapabilities() {
+        TagCapabilities capabilities = TagCapabilities.get(card.getId());
+        if (capabilities != null) return capabilities;
+        return new TagCapabilities(getTagType(), TagCapabilities.UNKNOWN, TagCapabilities.UNKNOWN);
+    }
+
+    /**
+     * Helper method for detecting the type of the card.
+     *
+     * @return detected card type, UNKNOWN if the card is not from the Ultralight family
+     */
+    private TagType detectTagType() {
+        int typeID = card.getType();
+        Log.d("Type", "" + typeID);
+        switch (typeID) {
+            case CardTransport.TYPE_ULTRALIGHT_C:
+                return TagType.ULTRALIGHT_C;
+            case CardTransport.TYPE_ULTRALIGHT:
+                break;
+            default:
+                return TagType.UNKNOWN;
+        }
+        // Ultralight EV1 and NTAG21x answer to GET_VERSION, the original Ultralight does not
+        try {
+            return TagType.fromVersion(transceive(new byte[]{(byte) 0x60}));
+        } catch (IOException e) {
+            // The card halts after an unsupported command
+            reconnect();
+            return TagType.ULTRALIGHT;
+        }
+    }
+}
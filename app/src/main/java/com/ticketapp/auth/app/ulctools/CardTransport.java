@@ -0,0 +1,69 @@
+package com.ticketapp.auth.app.ulctools;
+
+/**
+ * Developed for Aalto University course CS-E4300 Network Security.
+ * Copyright (C) 2021-2022 Aalto University
+ */
+
+import java.io.IOException;
+
+/**
+ * Link to a card of the Ultralight family.
+ * <p/>
+ * On the phone the link is {@link NfcATransport}, other implementations allow
+ * running the card logic without a physical card.
+ */
+public interface CardTransport {
+
+    int TYPE_UNKNOWN = -1;
+    int TYPE_ULTRALIGHT = 1;
+    int TYPE_ULTRALIGHT_C = 2;
+
+    /**
+     * Open the link to the card.
+     *
+     * @throws IOException if the card is not in the field
+     */
+    void connect() throws IOException;
+
+    /**
+     * Close the link to the card. The card loses its authentication state.
+     *
+     * @throws IOException if closing failed
+     */
+    void close() throws IOException;
+
+    boolean isConnected();
+
+    /**
+     * Send a raw command to the card and return the response.
+     *
+     * @param data command bytes
+     * @return response bytes
+     * @throws IOException if the card did not answer or answered with a NAK
+     */
+    byte[] transceive(byte[] data) throws IOException;
+
+    /**
+     * Set how long a transceive waits for the response before failing.
+     * The timeout is reset to the platform default when the link is closed.
+     *
+     * @param millis timeout in milliseconds
+     */
+    void setTimeout(int millis);
+
+    /**
+     * @return maximum number of bytes sent or received in one transceive
+     */
+    int getMaxTransceiveLength();
+
+    /**
+     * @return card type reported by the platform, one of the TYPE_ constants
+     */
+    int getType();
+
+    /**
+     * @return UID of the card from anticollision
+     */
+    byte[] getId();
+}
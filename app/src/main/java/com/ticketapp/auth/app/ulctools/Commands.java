@@ -6,11 +6,52 @@ package com.ticketapp.auth.app.ulctools;
  */
 public class Commands {
 
+    // Pages where a WRITE is OR-ed into the current value (lock bytes, OTP)
+    private static final int[] OR_PAGES = {2, 3, 40};
+    // A WRITE to the counter page increments the counter
+    private static final int COUNTER_PAGE = 41;
+
+    private final CardSession session;
+    private int skippedWrites = 0;
+
+    /**
+     * @param session session with the card the commands are sent to
+     */
+    public Commands(CardSession session) {
+        this.session = session;
+    }
+
+    public CardSession getSession() {
+        return session;
+    }
+
+    /**
+     * Read one page from the card into a byte array.
+     * <p/>
+     * The READ command returns four pages, so the aligned 4-page block containing the
+     * page is read and kept in the page cache. Following reads of the same block are
+     * served from memory until the card is disconnected or the page is written.
+     *
+     * @param adr       page to read
+     * @param dstBuffer byte array where the page is stored
+     * @param dstPos    starting position in the destination array
+     * @return boolean value of success
+     */
     public boolean readBinary(int adr, byte[] dstBuffer, int dstPos) {
-        byte[] data = Reader.readPage(adr, false);
-        if (data.length > 0) {
-            System.arraycopy(data, 0, dstBuffer, dstPos, 4);
-        } else return false;
+        int page = session.resolvePage(adr);
+        if (session.getPageCache().read(page, dstBuffer, dstPos)) return true;
+
+        int start = PageCache.blockStart(page);
+        byte[] data = session.readPage(start, true);
+        if (data.length < 4 * (page - start + 1) && start != page) {
+            // Aligned block not readable (e.g. crosses a protected area), read the page itself
+            start = page;
+            data = session.readPage(start, true);
+        }
+        if (data.length < 4 * (page - start + 1)) return false;
+
+        session.getPageCache().store(start, data);
+        System.arraycopy(data, 4 * (page - start), dstBuffer, dstPos, 4);
         return true;
     }
 
@@ -25,6 +66,61 @@ public class Commands {
     public boolean writeBinary(int adr, byte[] srcBuffer, int srcPos) {
         byte[] data = new byte[4];
         System.arraycopy(srcBuffer, srcPos, data, 0, 4);
-        return Reader.updatePage(data, adr, false);
+        return session.updatePage(data, adr, false);
+    }
+
+    /**
+     * Write a byte array on the card to the one defined page, skipping the write if
+     * the page already holds the data.
+     * <p/>
+     * The page is compared against the page cache, or read from the card if it is not
+     * cached. Pages that cannot be read (e.g. the key) are always written.
+     *
+     * @param adr           destination page
+     * @param srcBuffer     byte array to be stored on the card
+     * @param srcPos        starting position of the data to write on input array
+     * @param skipUnchanged if true, identical pages are not written
+     * @return boolean value of success
+     */
+    public boolean writeBinary(int adr, byte[] srcBuffer, int srcPos, boolean skipUnchanged) {
+        if (skipUnchanged && isUnchanged(adr, srcBuffer, srcPos)) {
+            skippedWrites++;
+            return true;
+        }
+        return writeBinary(adr, srcBuffer, srcPos);
+    }
+
+    /**
+     * Check if writing the data would leave the page as it is.
+     */
+    private boolean isUnchanged(int adr, byte[] srcBuffer, int srcPos) {
+        int page = session.resolvePage(adr);
+        if (page == COUNTER_PAGE || page >= session.getTagType().getPageCount()) return false;
+
+        byte[] current = new byte[4];
+        if (!readBinary(adr, current, 0)) return false;
+
+        // Safe mode merges the data with the mapped page, like the lock and OTP pages
+        boolean orPage = page != adr;
+        for (int orAdr : OR_PAGES) {
+            if (page == orAdr) orPage = true;
+        }
+        for (int i = 0; i < 4; i++) {
+            byte b = srcBuffer[srcPos + i];
+            if (orPage) b = (byte) (b | current[i]);
+            if (b != current[i]) return false;
+        }
+        return true;
+    }
+
+    /**
+     * @return number of page writes skipped because the page already held the data
+     */
+    public int getSkippedWrites() {
+        return skippedWrites;
+    }
+
+    public void resetSkippedWrites() {
+        skippedWrites = 0;
     }
 }
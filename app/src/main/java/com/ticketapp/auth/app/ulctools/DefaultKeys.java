@@ -0,0 +1,43 @@
+package com.ticketapp.auth.app.ulctools;
+
+/**
+ * Developed for Aalto University course CS-E4300 Network Security.
+ * Copyright (C) 2021-2022 Aalto University
+ */
+
+import android.content.Context;
+
+import com.ticketapp.auth.R;
+
+/**
+ * Default keys of the reader. They are stored in res/values/secrets.xml and loaded when
+ * the app starts, see {@link #load(Context)}. Until then, e.g. when the ticket logic runs
+ * on a plain JVM without the app, the factory defaults of the card are used.
+ */
+public class DefaultKeys {
+
+    private static volatile String authKey = "BREAKMEIFYOUCAN!";
+    private static volatile String hmacKey = "0123456789ABCDEF";
+
+    /**
+     * Take the default keys from the resources of the app. Call it before the first use
+     * of {@link Reader}, which takes its initial authentication key from here.
+     *
+     * @param context context of the app
+     */
+    public static void load(Context context) {
+        authKey = context.getString(R.string.default_auth_key);
+        hmacKey = context.getString(R.string.default_hmac_key);
+    }
+
+    /**
+     * @return default authentication key of blank cards, as given to {@link Reader#setAuthKey(String)}
+     */
+    public static String getAuthKey() {
+        return authKey;
+    }
+
+    public static String getHmacKey() {
+        return hmacKey;
+    }
+}
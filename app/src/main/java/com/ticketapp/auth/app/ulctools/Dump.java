@@ -105,7 +105,7 @@ public class Dump {
                 ascii += asciiPart;
                 binary += (binary(b) + " ");
             }
-            if (Reader.safeMode && Reader.pageMap.containsValue(i)) {
+            if (Reader.safeMode && Reader.isSafeModeTarget(i)) {
                 ascii = "safe";
             }
             if (mode == 0) data += number + hex + asciiSep + ascii + asciiSep + "\n";
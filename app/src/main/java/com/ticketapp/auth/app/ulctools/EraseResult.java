@@ -0,0 +1,79 @@
+package com.ticketapp.auth.app.ulctools;
+
+/**
+ * Developed for Aalto University course CS-E4300 Network Security.
+ * Copyright (C) 2021-2022 Aalto University
+ */
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Outcome of erasing a card, page by page: cleared, skipped because the page was
+ * already empty, or failed.
+ */
+public class EraseResult {
+
+    private final List<Integer> cleared = new ArrayList<Integer>();
+    private final List<Integer> skipped = new ArrayList<Integer>();
+    private final List<Integer> failed = new ArrayList<Integer>();
+    private final boolean authenticated;
+
+    EraseResult(boolean authenticated) {
+        this.authenticated = authenticated;
+    }
+
+    void cleared(int page) {
+        cleared.add(page);
+    }
+
+    void skipped(int page) {
+        skipped.add(page);
+    }
+
+    void failed(int page) {
+        failed.add(page);
+    }
+
+    /**
+     * @return pages written with zeros
+     */
+    public List<Integer> getCleared() {
+        return Collections.unmodifiableList(cleared);
+    }
+
+    /**
+     * @return pages not written because they were already zero
+     */
+    public List<Integer> getSkipped() {
+        return Collections.unmodifiableList(skipped);
+    }
+
+    /**
+     * @return pages that could not be erased
+     */
+    public List<Integer> getFailed() {
+        return Collections.unmodifiableList(failed);
+    }
+
+    /**
+     * @return true if the erase was done with authentication
+     */
+    public boolean isAuthenticated() {
+        return authenticated;
+    }
+
+    /**
+     * @return true if no page failed
+     */
+    public boolean isSuccessful() {
+        return failed.isEmpty();
+    }
+
+    @Override
+    public String toString() {
+        String msg = isSuccessful() ? "Erase successful" : "Erase partial - pages " + failed + " could not be erased.";
+        return msg + "\n" + cleared.size() + " pages cleared, " + skipped.size() + " already empty";
+    }
+}
@@ -0,0 +1,257 @@
+package com.ticketapp.auth.app.ulctools;
+
+/**
+ * Developed for Aalto University course CS-E4300 Network Security.
+ * Copyright (C) 2021-2022 Aalto University
+ */
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Random;
+
+/**
+ * Card link that adds the faults of a real gate to another link.
+ * <p/>
+ * Every command is delayed by the latency configured for its opcode, fails with an
+ * IOException with a configurable probability, and the card can be pulled out of the
+ * field after a given number of commands. A WRITE torn that way reaches the card or not
+ * with equal probability, like a card pulled during EEPROM programming.
+ * <p/>
+ * Used to measure tap time and failure rate of the ticket logic under a bad link,
+ * see {@link TapStatistics}.
+ */
+public class FaultInjectingTransport implements CardTransport {
+
+    private final CardTransport card;
+    private final Random random;
+    private final HashMap<Integer, Latency> latencies = new HashMap<Integer, Latency>();
+    private Latency defaultLatency = Latency.NONE;
+    private Latency connectLatency = Latency.NONE;
+    private double failureRate = 0;
+    private int tearAfter = -1;
+    private int timeoutMillis = 0;
+
+    private int commands = 0;
+    private boolean torn = false;
+    private int injectedFailures = 0;
+    private int timeouts = 0;
+
+    /**
+     * @param card   link the commands are forwarded to
+     * @param random source of the injected faults, seed it for repeatable runs
+     */
+    public FaultInjectingTransport(CardTransport card, Random random) {
+        this.card = card;
+        this.random = random;
+    }
+
+    /**
+     * Link near the edge of the field: slow round trips with a long tail and
+     * occasional lost frames. The numbers are rough figures for an Ultralight C
+     * on a phone, not measurements of a specific reader.
+     *
+     * @param card link the commands are forwarded to
+     * @param seed seed of the injected faults
+     * @return the configured link
+     */
+    public static FaultInjectingTransport badLink(CardTransport card, long seed) {
+        FaultInjectingTransport link = new FaultInjectingTransport(card, new Random(seed));
+        link.setLatency(0x30, new Latency(3000, 800, 0.05, 40000));
+        link.setLatency(0xA2, new Latency(7000, 1500, 0.05, 40000));
+        link.setLatency(0x1A, new Latency(4000, 800, 0.05, 40000));
+        link.setLatency(0xAF, new Latency(5000, 800, 0.05, 40000));
+        link.setConnectLatency(new Latency(15000, 5000));
+        link.setFailureRate(0.02);
+        return link;
+    }
+
+    /**
+     * @param opcode  first byte of the command
+     * @param latency delay added to every command with this opcode
+     */
+    public void setLatency(int opcode, Latency latency) {
+        latencies.put(opcode, latency);
+    }
+
+    /**
+     * @param latency delay added to commands without an opcode specific latency
+     */
+    public void setDefaultLatency(Latency latency) {
+        defaultLatency = latency;
+    }
+
+    /**
+     * @param latency delay added to opening the link
+     */
+    public void setConnectLatency(Latency latency) {
+        connectLatency = latency;
+    }
+
+    /**
+     * @param failureRate probability (0 - 1) of a command failing with an IOException
+     */
+    public void setFailureRate(double failureRate) {
+        this.failureRate = failureRate;
+    }
+
+    /**
+     * Pull the card out of the field after the given number of commands.
+     * The command after that is torn and the link stays broken until {@link #restore()}.
+     *
+     * @param commands number of commands that still succeed, -1 to disable
+     */
+    public void tearAfter(int commands) {
+        this.tearAfter = commands;
+        this.commands = 0;
+    }
+
+    /**
+     * Put the card back into the field.
+     */
+    public void restore() {
+        torn = false;
+        tearAfter = -1;
+        commands = 0;
+    }
+
+    public boolean isTorn() {
+        return torn;
+    }
+
+    /**
+     * @return number of commands failed on purpose, including torn commands
+     */
+    public int getInjectedFailures() {
+        return injectedFailures;
+    }
+
+    /**
+     * @return number of commands failed because the delay exceeded the timeout
+     */
+    public int getTimeouts() {
+        return timeouts;
+    }
+
+    @Override
+    public void connect() throws IOException {
+        sleep(connectLatency.next(random));
+        if (torn) throw new IOException("Tag was lost");
+        card.connect();
+    }
+
+    @Override
+    public void close() throws IOException {
+        timeoutMillis = 0;
+        card.close();
+    }
+
+    @Override
+    public boolean isConnected() {
+        return !torn && card.isConnected();
+    }
+
+    @Override
+    public byte[] transceive(byte[] data) throws IOException {
+        if (torn) throw new IOException("Tag was lost");
+        int opcode = data.length > 0 ? data[0] & 0xFF : -1;
+        Latency latency = latencies.get(opcode);
+        long micros = (latency != null ? latency : defaultLatency).next(random);
+        if (timeoutMillis > 0 && micros > timeoutMillis * 1000L) {
+            // The reader gives up waiting for a slow response
+            sleep(timeoutMillis * 1000L);
+            timeouts++;
+            throw new IOException("Transceive timed out");
+        }
+        sleep(micros);
+
+        commands++;
+        if (tearAfter >= 0 && commands > tearAfter) {
+            torn = true;
+            injectedFailures++;
+            if (opcode == 0xA2 && random.nextBoolean()) {
+                card.transceive(data);
+            }
+            throw new IOException("Tag was lost");
+        }
+        if (failureRate > 0 && random.nextDouble() < failureRate) {
+            injectedFailures++;
+            throw new IOException("Transceive failed");
+        }
+        return card.transceive(data);
+    }
+
+    /**
+     * Commands delayed longer than the timeout fail after the timeout.
+     */
+    @Override
+    public void setTimeout(int millis) {
+        timeoutMillis = millis;
+        card.setTimeout(millis);
+    }
+
+    @Override
+    public int getMaxTransceiveLength() {
+        return card.getMaxTransceiveLength();
+    }
+
+    @Override
+    public int getType() {
+        return card.getType();
+    }
+
+    @Override
+    public byte[] getId() {
+        return card.getId();
+    }
+
+    private void sleep(long micros) {
+        if (micros <= 0) return;
+        try {
+            Thread.sleep(micros / 1000, (int) (micros % 1000) * 1000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Distribution of the delay of a command: normally distributed around the mean,
+     * with an optional tail of slow round trips.
+     */
+    public static class Latency {
+
+        public static final Latency NONE = new Latency(0, 0);
+
+        private final long meanMicros;
+        private final long jitterMicros;
+        private final double tailProbability;
+        private final long tailMicros;
+
+        /**
+         * @param meanMicros   mean delay in microseconds
+         * @param jitterMicros standard deviation in microseconds
+         */
+        public Latency(long meanMicros, long jitterMicros) {
+            this(meanMicros, jitterMicros, 0, 0);
+        }
+
+        /**
+         * @param meanMicros      mean delay in microseconds
+         * @param jitterMicros    standard deviation in microseconds
+         * @param tailProbability probability (0 - 1) of a slow round trip
+         * @param tailMicros      extra delay of a slow round trip in microseconds
+         */
+        public Latency(long meanMicros, long jitterMicros, double tailProbability, long tailMicros) {
+            this.meanMicros = meanMicros;
+            this.jitterMicros = jitterMicros;
+            this.tailProbability = tailProbability;
+            this.tailMicros = tailMicros;
+        }
+
+        long next(Random random) {
+            long micros = meanMicros;
+            if (jitterMicros > 0) micros += (long) (random.nextGaussian() * jitterMicros);
+            if (tailProbability > 0 && random.nextDouble() < tailProbability) micros += tailMicros;
+            return Math.max(0, micros);
+        }
+    }
+}
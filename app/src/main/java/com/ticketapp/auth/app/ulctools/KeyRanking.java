@@ -0,0 +1,160 @@
+package com.ticketapp.auth.app.ulctools;
+
+/**
+ * Developed for Aalto University course CS-E4300 Network Security.
+ * Copyright (C) 2021-2022 Aalto University
+ */
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Tries the stored keys on a card, the ones that worked most often and most recently
+ * first, and stops at the first that works.
+ * <p/>
+ * Every successful authentication adds to the score of the key; the score halves every
+ * {@link #HALF_LIFE_MILLIS} without a success, so keys of the cards seen lately come
+ * first. The 3DES key schedule of every key is prepared once, not per card. Scores are
+ * kept as text lines, see {@link #toLines()}, to be saved with the key list.
+ */
+public class KeyRanking {
+
+    static final long HALF_LIFE_MILLIS = 24L * 60 * 60 * 1000;
+
+    private static class Entry {
+        final byte[] key;
+        final TripleDES.Key schedule;
+        double score = 0;
+        long lastHit = 0;
+
+        Entry(byte[] key) {
+            this.key = key;
+            this.schedule = TripleDES.forCardKey(key);
+        }
+
+        double scoreAt(long now) {
+            if (score == 0) return 0;
+            return score * Math.pow(0.5, (double) Math.max(0, now - lastHit) / HALF_LIFE_MILLIS);
+        }
+    }
+
+    private final Map<String, Entry> entries = new HashMap<String, Entry>();
+    private boolean changed = false;
+
+    /**
+     * Authenticate with the first stored key that works.
+     *
+     * @param session   session with the card
+     * @param keys      stored keys, as given to {@link Reader#setAuthKey(String)}
+     * @param preferred key tried first among keys with the same score, e.g. the key selected
+     *                  by hand, null for none
+     * @param display   boolean value defining whether to show the commands and responses in the console
+     * @return the key that worked, null if none did
+     */
+    public String authenticate(CardSession session, List<String> keys, String preferred, boolean display) {
+        List<String> candidates = new ArrayList<String>();
+        if (preferred != null) candidates.add(preferred);
+        candidates.addAll(keys);
+        List<String> order = rank(candidates, System.currentTimeMillis());
+
+        for (String key : order) {
+            Entry entry = entry(key);
+            if (display) Reader.appendHistory("\nkey: \n" + key + "\n");
+            if (session.authenticate(entry.key, entry.schedule, display)) {
+                recordHit(key, System.currentTimeMillis());
+                return key;
+            }
+            if (!session.getTransport().isConnected()) break;
+        }
+        return null;
+    }
+
+    /**
+     * @param keys stored keys
+     * @param now  current time in milliseconds
+     * @return the keys without duplicates, highest score first; keys with the same score keep their order
+     */
+    public synchronized List<String> rank(List<String> keys, final long now) {
+        List<String> order = new ArrayList<String>();
+        for (String key : keys) {
+            if (!order.contains(key)) order.add(key);
+        }
+        final Map<String, Double> scores = new HashMap<String, Double>();
+        for (String key : order) {
+            Entry entry = entries.get(key);
+            scores.put(key, entry == null ? 0 : entry.scoreAt(now));
+        }
+        Collections.sort(order, new Comparator<String>() {
+            @Override
+            public int compare(String a, String b) {
+                return Double.compare(scores.get(b), scores.get(a));
+            }
+        });
+        return order;
+    }
+
+    /**
+     * @param key key that authenticated a card
+     * @param now current time in milliseconds
+     */
+    public synchronized void recordHit(String key, long now) {
+        Entry entry = entry(key);
+        entry.score = entry.scoreAt(now) + 1;
+        entry.lastHit = now;
+        changed = true;
+    }
+
+    /**
+     * @return true if a score changed since the last {@link #toLines()}
+     */
+    public synchronized boolean isChanged() {
+        return changed;
+    }
+
+    /**
+     * @return one line per key with a score: key, score and time of the last success
+     */
+    public synchronized List<String> toLines() {
+        List<String> lines = new ArrayList<String>();
+        for (Map.Entry<String, Entry> e : entries.entrySet()) {
+            if (e.getValue().lastHit == 0) continue;
+            lines.add(e.getKey() + "," + e.getValue().score + "," + e.getValue().lastHit);
+        }
+        changed = false;
+        return lines;
+    }
+
+    /**
+     * Restore the scores saved with {@link #toLines()}. Malformed lines are skipped.
+     *
+     * @param lines saved lines
+     */
+    public synchronized void fromLines(List<String> lines) {
+        for (String line : lines) {
+            // The key itself may contain commas, the numbers do not
+            int last = line.lastIndexOf(',');
+            int middle = last > 0 ? line.lastIndexOf(',', last - 1) : -1;
+            if (middle <= 0) continue;
+            try {
+                Entry entry = entry(line.substring(0, middle));
+                entry.score = Double.parseDouble(line.substring(middle + 1, last));
+                entry.lastHit = Long.parseLong(line.substring(last + 1));
+            } catch (NumberFormatException e) {
+                Utilities.log("Invalid key score: " + line, true);
+            }
+        }
+    }
+
+    private synchronized Entry entry(String key) {
+        Entry entry = entries.get(key);
+        if (entry == null) {
+            entry = new Entry(Reader.getKey(key));
+            entries.put(key, entry);
+        }
+        return entry;
+    }
+}
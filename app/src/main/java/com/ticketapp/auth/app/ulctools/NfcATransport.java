@@ -0,0 +1,72 @@
+package com.ticketapp.auth.app.ulctools;
+
+/**
+ * Developed for Aalto University course CS-E4300 Network Security.
+ * Copyright (C) 2021-2022 Aalto University
+ */
+
+import android.nfc.tech.MifareUltralight;
+import android.nfc.tech.NfcA;
+
+import java.io.IOException;
+
+/**
+ * Card link through the Android NfcA tag technology.
+ */
+public class NfcATransport implements CardTransport {
+
+    private final NfcA card;
+
+    public NfcATransport(NfcA card) {
+        this.card = card;
+    }
+
+    @Override
+    public void connect() throws IOException {
+        card.connect();
+    }
+
+    @Override
+    public void close() throws IOException {
+        card.close();
+    }
+
+    @Override
+    public boolean isConnected() {
+        return card.isConnected();
+    }
+
+    @Override
+    public byte[] transceive(byte[] data) throws IOException {
+        return card.transceive(data);
+    }
+
+    @Override
+    public void setTimeout(int millis) {
+        card.setTimeout(millis);
+    }
+
+    @Override
+    public int getMaxTransceiveLength() {
+        return card.getMaxTransceiveLength();
+    }
+
+    @Override
+    public int getType() {
+        MifareUltralight ultralight = MifareUltralight.get(card.getTag());
+        if (ultralight == null) return TYPE_UNKNOWN;
+        switch (ultralight.getType()) {
+            case MifareUltralight.TYPE_ULTRALIGHT:
+                return TYPE_ULTRALIGHT;
+            case MifareUltralight.TYPE_ULTRALIGHT_C:
+                return TYPE_ULTRALIGHT_C;
+            default:
+                return TYPE_UNKNOWN;
+        }
+    }
+
+    @Override
+    public byte[] getId() {
+        return card.getTag().getId();
+    }
+}
@@ -0,0 +1,94 @@
+package com.ticketapp.auth.app.ulctools;
+
+/**
+ * Developed for Aalto University course CS-E4300 Network Security.
+ * Copyright (C) 2021-2022 Aalto University
+ */
+
+import java.security.SecureRandom;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Reader challenges (RndA) for the card authentication, generated ahead of time.
+ * <p/>
+ * One SecureRandom is seeded once and kept. A few challenges are generated in the
+ * background and taken from the pool during the tap; when the pool runs low it is
+ * refilled in the background again. If the pool is empty, e.g. on a burst of taps from
+ * several readers, the challenge is generated right away instead. Every challenge is
+ * handed out once.
+ */
+public class NoncePool {
+
+    public static final int NONCE_LENGTH = 8;
+
+    private static final NoncePool shared = new NoncePool(16);
+
+    private final SecureRandom random = new SecureRandom();
+    private final ArrayBlockingQueue<byte[]> pool;
+    private final AtomicBoolean refilling = new AtomicBoolean(false);
+    private final ExecutorService refiller = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "nonce-pool");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    /**
+     * @param size number of challenges kept ready, the pool is filled in the background
+     */
+    public NoncePool(int size) {
+        pool = new ArrayBlockingQueue<byte[]>(size);
+        refill();
+    }
+
+    /**
+     * @return the pool used by card sessions
+     */
+    public static NoncePool getDefault() {
+        return shared;
+    }
+
+    /**
+     * @return a new 8-byte challenge
+     */
+    public byte[] next() {
+        byte[] nonce = pool.poll();
+        if (pool.size() <= pool.remainingCapacity()) refill();
+        if (nonce != null) return nonce;
+
+        nonce = new byte[NONCE_LENGTH];
+        random.nextBytes(nonce);
+        return nonce;
+    }
+
+    /**
+     * @return number of challenges ready
+     */
+    public int available() {
+        return pool.size();
+    }
+
+    private void refill() {
+        if (!refilling.compareAndSet(false, true)) return;
+        refiller.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    while (pool.remainingCapacity() > 0) {
+                        byte[] nonce = new byte[NONCE_LENGTH];
+                        random.nextBytes(nonce);
+                        if (!pool.offer(nonce)) break;
+                    }
+                } finally {
+                    refilling.set(false);
+                }
+            }
+        });
+    }
+}
@@ -0,0 +1,123 @@
+package com.ticketapp.auth.app.ulctools;
+
+/**
+ * Developed for Aalto University course CS-E4300 Network Security.
+ * Copyright (C) 2021-2022 Aalto University
+ */
+
+import java.util.Arrays;
+
+/**
+ * Memory image of the pages read from the card during one tap.
+ * <p/>
+ * The READ command (0x30) always returns 16 bytes, i.e. four consecutive pages.
+ * Every page of such a block is kept here so that later reads of the
+ * neighbouring pages are served without another round trip to the card.
+ * Pages are stored by their physical address on the card.
+ */
+public class PageCache {
+
+    public static final int PAGE_SIZE = 4;
+    public static final int BLOCK_PAGES = 4;
+
+    private final int pageCount;
+    private final byte[] image;
+    private final boolean[] valid;
+
+    private int hits = 0;
+    private int misses = 0;
+
+    /**
+     * @param pageCount number of readable pages on the card, reads never wrap past this page
+     */
+    public PageCache(int pageCount) {
+        this.pageCount = pageCount;
+        this.image = new byte[pageCount * PAGE_SIZE];
+        this.valid = new boolean[pageCount];
+    }
+
+    /**
+     * Get the first page of the aligned 4-page block containing the given page.
+     *
+     * @param page physical page number
+     * @return page number to send in the READ command
+     */
+    public static int blockStart(int page) {
+        return page - (page % BLOCK_PAGES);
+    }
+
+    /**
+     * Copy a cached page to the destination buffer.
+     *
+     * @param page   physical page number
+     * @param dst    destination buffer
+     * @param dstPos position in destination buffer
+     * @return true if the page was cached, false if it has to be read from the card
+     */
+    public boolean read(int page, byte[] dst, int dstPos) {
+        if (page < 0 || page >= pageCount || !valid[page]) {
+            misses++;
+            return false;
+        }
+        System.arraycopy(image, page * PAGE_SIZE, dst, dstPos, PAGE_SIZE);
+        hits++;
+        return true;
+    }
+
+    /**
+     * Store the response of a READ command.
+     * Pages past the end of the readable memory are not stored since the card
+     * rolls over to page 0 in that case.
+     *
+     * @param startPage page the READ command was sent to
+     * @param response  response of the READ command
+     */
+    public void store(int startPage, byte[] response) {
+        store(startPage, response, 0, Math.min(response.length / PAGE_SIZE, BLOCK_PAGES));
+    }
+
+    /**
+     * Store consecutive pages, e.g. from a FAST_READ response.
+     *
+     * @param startPage first page in the data
+     * @param data      page data
+     * @param dataPos   position of the first page in data
+     * @param pages     number of pages to store
+     */
+    public void store(int startPage, byte[] data, int dataPos, int pages) {
+        for (int i = 0; i < pages; i++) {
+            int page = startPage + i;
+            if (page < 0 || page >= pageCount) break;
+            System.arraycopy(data, dataPos + i * PAGE_SIZE, image, page * PAGE_SIZE, PAGE_SIZE);
+            valid[page] = true;
+        }
+    }
+
+    /**
+     * Drop a single page, e.g. after it was written.
+     *
+     * @param page physical page number
+     */
+    public void invalidate(int page) {
+        if (page >= 0 && page < pageCount) valid[page] = false;
+    }
+
+    /**
+     * Drop every cached page. Called whenever the card connection changes.
+     */
+    public void clear() {
+        Arrays.fill(valid, false);
+    }
+
+    public int getPageCount() {
+        return pageCount;
+    }
+
+    public int getHits() {
+        return hits;
+    }
+
+    public int getMisses() {
+        return misses;
+    }
+}
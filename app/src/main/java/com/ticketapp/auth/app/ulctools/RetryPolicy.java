@@ -0,0 +1,63 @@
+package com.ticketapp.auth.app.ulctools;
+
+/**
+ * Developed for Aalto University course CS-E4300 Network Security.
+ * Copyright (C) 2021-2022 Aalto University
+ */
+
+/**
+ * How often a {@link CardSession} retries a failed page command.
+ * <p/>
+ * A failed command halts the card, so every retry reconnects and, if the session was
+ * authenticated, authenticates again with the last key that worked. Retries are bounded
+ * per command, per session, and by a deadline counted from the opening of the session.
+ */
+public class RetryPolicy {
+
+    /** Up to 3 attempts per command and 4 retries per tap, within 1.5 seconds */
+    public static final RetryPolicy DEFAULT = new RetryPolicy(3, 4, 1500);
+    /** Fail on the first error */
+    public static final RetryPolicy NONE = new RetryPolicy(1, 0, 0);
+
+    private final int maxAttempts;
+    private final int maxRetries;
+    private final long deadlineMillis;
+
+    /**
+     * @param maxAttempts    attempts per command, including the first one
+     * @param maxRetries     retries per session, each costing a reconnect and authentication
+     * @param deadlineMillis no retries after this many milliseconds from opening the session,
+     *                       0 for no deadline
+     */
+    public RetryPolicy(int maxAttempts, int maxRetries, long deadlineMillis) {
+        if (maxAttempts < 1 || maxRetries < 0 || deadlineMillis < 0) {
+            throw new IllegalArgumentException("Invalid retry policy");
+        }
+        this.maxAttempts = maxAttempts;
+        this.maxRetries = maxRetries;
+        this.deadlineMillis = deadlineMillis;
+    }
+
+    public int getMaxAttempts() {
+        return maxAttempts;
+    }
+
+    public int getMaxRetries() {
+        return maxRetries;
+    }
+
+    public long getDeadlineMillis() {
+        return deadlineMillis;
+    }
+
+    /**
+     * @param attempt     attempts made for the command so far
+     * @param retries     retries made in the session so far
+     * @param openedNanos System.nanoTime() when the session was opened
+     * @return true if the command may be sent again
+     */
+    public boolean allowsRetry(int attempt, int retries, long openedNanos) {
+        if (attempt >= maxAttempts || retries >= maxRetries) return false;
+        return deadlineMillis == 0 || (System.nanoTime() - openedNanos) / 1000000 < deadlineMillis;
+    }
+}
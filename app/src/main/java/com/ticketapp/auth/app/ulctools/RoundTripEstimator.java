@@ -0,0 +1,127 @@
+package com.ticketapp.auth.app.ulctools;
+
+/**
+ * Developed for Aalto University course CS-E4300 Network Security.
+ * Copyright (C) 2021-2022 Aalto University
+ */
+
+import java.util.Arrays;
+
+/**
+ * Running estimate of the card round-trip time per kind of command, used to set the
+ * transceive timeout.
+ * <p/>
+ * The last {@link #SAMPLES} successful round trips of each kind are kept. The timeout is
+ * a margin times a high percentile of them, bounded between a minimum and a maximum.
+ * Until enough round trips have been seen the maximum is used. A card that stops answering
+ * then fails after a few times the usual round trip, instead of after the platform default.
+ * <p/>
+ * Kept across sessions, as the round trip depends mostly on the reader and the card model.
+ */
+public class RoundTripEstimator {
+
+    public static final int READ = 0;
+    public static final int WRITE = 1;
+    public static final int AUTH = 2;
+    public static final int OTHER = 3;
+
+    static final int SAMPLES = 64;
+    private static final int MIN_SAMPLES = 8;
+
+    private final int minTimeout;
+    private final int maxTimeout;
+    private final int percentile;
+    private final double margin;
+
+    private final long[][] samples = new long[4][SAMPLES]; // In order of arrival, a ring
+    private final long[][] sorted = new long[4][SAMPLES]; // The same round trips, sorted
+    private final int[] counts = new int[4];
+    private final int[] timeouts = new int[4];
+
+    /**
+     * Timeout of 3 times the 99th percentile, between 20 and 300 ms.
+     */
+    public RoundTripEstimator() {
+        this(20, 300, 99, 3.0);
+    }
+
+    /**
+     * @param minTimeout smallest timeout in milliseconds
+     * @param maxTimeout largest timeout in milliseconds, also used before enough samples
+     * @param percentile percentile of the round trips the timeout is based on
+     * @param margin     factor applied to the percentile
+     */
+    public RoundTripEstimator(int minTimeout, int maxTimeout, int percentile, double margin) {
+        this.minTimeout = minTimeout;
+        this.maxTimeout = maxTimeout;
+        this.percentile = percentile;
+        this.margin = margin;
+        Arrays.fill(timeouts, maxTimeout);
+    }
+
+    /**
+     * @param command command sent to the card
+     * @return kind of the command: READ, WRITE, AUTH or OTHER
+     */
+    public static int kindOf(byte[] command) {
+        if (command.length == 0) return OTHER;
+        switch (command[0] & 0xFF) {
+            case 0x30:
+            case 0x3A:
+                return READ;
+            case 0xA2:
+                return WRITE;
+            case 0x1A:
+            case 0xAF:
+                return AUTH;
+            default:
+                return OTHER;
+        }
+    }
+
+    /**
+     * Add the round trip of a command that was answered.
+     *
+     * @param kind  kind of the command, see {@link #kindOf(byte[])}
+     * @param nanos time from sending until the response
+     */
+    public synchronized void record(int kind, long nanos) {
+        if (kind == OTHER) return;
+        // Called for every command: the sorted window is updated in place, one round trip
+        // out and one in, instead of sorting a copy
+        long[] window = sorted[kind];
+        int slot = counts[kind] % SAMPLES;
+        int n = Math.min(counts[kind], SAMPLES);
+        if (n == SAMPLES) {
+            int out = Arrays.binarySearch(window, 0, n, samples[kind][slot]);
+            System.arraycopy(window, out + 1, window, out, n - out - 1);
+            n--;
+        }
+        int in = Arrays.binarySearch(window, 0, n, nanos);
+        if (in < 0) in = -in - 1;
+        System.arraycopy(window, in, window, in + 1, n - in);
+        window[in] = nanos;
+        n++;
+        samples[kind][slot] = nanos;
+        counts[kind]++;
+        if (counts[kind] < MIN_SAMPLES) return;
+
+        long bound = window[Math.min(n - 1, (n * percentile) / 100)];
+        int timeout = (int) Math.ceil(bound * margin / 1e6);
+        timeouts[kind] = Math.max(minTimeout, Math.min(maxTimeout, timeout));
+    }
+
+    /**
+     * @param kind kind of the command, see {@link #kindOf(byte[])}
+     * @return timeout for the command in milliseconds
+     */
+    public synchronized int getTimeout(int kind) {
+        return timeouts[kind];
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "timeouts: read " + timeouts[READ] + " ms, write " + timeouts[WRITE]
+                + " ms, auth " + timeouts[AUTH] + " ms";
+    }
+}
@@ -0,0 +1,294 @@
+package com.ticketapp.auth.app.ulctools;
+
+/**
+ * Developed for Aalto University course CS-E4300 Network Security.
+ * Copyright (C) 2021-2022 Aalto University
+ */
+
+import java.io.IOException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * In-memory MIFARE Ultralight C card.
+ * <p/>
+ * Implements the commands used by the application: READ (0x30), WRITE (0xA2) and the
+ * 3DES mutual authentication (0x1A / 0xAF), together with the 16-bit counter at page 41,
+ * the lock bytes at pages 2 and 40 and the AUTH0 / AUTH1 memory protection at pages 42 and 43.
+ * Like the real card, it answers an invalid command with a NAK (IOException) and halts
+ * until the link is opened again.
+ * <p/>
+ * Pure Java, so the card logic can be run and measured without a phone.
+ */
+public class SimulatedUltralightC implements CardTransport {
+
+    public static final int PAGES = 48;
+    private static final int LAST_READABLE_PAGE = 0x2B;
+    private static final int LOCK_PAGE = 2;
+    private static final int OTP_PAGE = 3;
+    private static final int DYNAMIC_LOCK_PAGE = 40;
+    private static final int COUNTER_PAGE = 41;
+    private static final int AUTH0_PAGE = 42;
+    private static final int AUTH1_PAGE = 43;
+    private static final int KEY_PAGE = 44;
+
+    private static final byte[] ACK = {(byte) 0x0A};
+    private static final byte[] DEFAULT_KEY = "BREAKMEIFYOUCAN!".getBytes();
+
+    private final byte[] memory = new byte[PAGES * 4];
+    private final byte[] uid;
+    private final Random random;
+
+    private boolean connected = false;
+    private boolean halted = false;
+    private boolean authenticated = false;
+    private byte[] rndB;
+    private byte[] ekRndB;
+
+    /**
+     * Blank card with the default key, no memory protection and the counter at 0.
+     *
+     * @param uid 7-byte UID of the card
+     */
+    public SimulatedUltralightC(byte[] uid) {
+        this(uid, new SecureRandom());
+    }
+
+    /**
+     * @param uid    7-byte UID of the card
+     * @param random source of the card challenges, seed it for repeatable runs
+     */
+    public SimulatedUltralightC(byte[] uid, Random random) {
+        this.uid = uid.clone();
+        this.random = random;
+
+        // Manufacturer data: UID with check bytes
+        memory[0] = uid[0];
+        memory[1] = uid[1];
+        memory[2] = uid[2];
+        memory[3] = (byte) (0x88 ^ uid[0] ^ uid[1] ^ uid[2]);
+        System.arraycopy(uid, 3, memory, 4, 4);
+        memory[8] = (byte) (uid[3] ^ uid[4] ^ uid[5] ^ uid[6]);
+        memory[9] = (byte) 0x48;
+
+        memory[AUTH0_PAGE * 4] = (byte) 0x30;
+        System.arraycopy(DEFAULT_KEY, 0, memory, KEY_PAGE * 4, 16);
+    }
+
+    /**
+     * Copy of a page, including the pages that cannot be read over the air.
+     *
+     * @param page page number (0 - 47)
+     * @return 4 bytes of the page
+     */
+    public byte[] getPage(int page) {
+        return Arrays.copyOfRange(memory, page * 4, page * 4 + 4);
+    }
+
+    /**
+     * Set a page directly, bypassing locks and protection. Used for preparing test cards.
+     *
+     * @param page page number (0 - 47)
+     * @param data 4 bytes of the page
+     */
+    public void setPage(int page, byte[] data) {
+        System.arraycopy(data, 0, memory, page * 4, 4);
+    }
+
+    @Override
+    public void connect() throws IOException {
+        connected = true;
+        halted = false;
+        authenticated = false;
+        rndB = null;
+    }
+
+    @Override
+    public void close() {
+        connected = false;
+        authenticated = false;
+        rndB = null;
+    }
+
+    @Override
+    public boolean isConnected() {
+        return connected;
+    }
+
+    /**
+     * The simulated card answers immediately, the timeout is ignored.
+     */
+    @Override
+    public void setTimeout(int millis) {
+    }
+
+    @Override
+    public int getMaxTransceiveLength() {
+        return 253;
+    }
+
+    @Override
+    public int getType() {
+        return TYPE_ULTRALIGHT_C;
+    }
+
+    @Override
+    public byte[] getId() {
+        return uid.clone();
+    }
+
+    @Override
+    public byte[] transceive(byte[] data) throws IOException {
+        if (!connected) throw new IOException("Not connected");
+        if (halted) throw new IOException("Tag was lost");
+        if (data.length == 0) throw nak();
+
+        int cmd = data[0] & 0xFF;
+        // The authentication has to continue right after the first step
+        if (cmd != 0xAF) rndB = null;
+        switch (cmd) {
+            case 0x30:
+                if (data.length != 2) throw nak();
+                return read(data[1] & 0xFF);
+            case 0xA2:
+                if (data.length != 6) throw nak();
+                return write(data[1] & 0xFF, Arrays.copyOfRange(data, 2, 6));
+            case 0x1A:
+                if (data.length != 2 || data[1] != 0x00) throw nak();
+                return authenticateStep1();
+            case 0xAF:
+                if (data.length != 17 || rndB == null) throw nak();
+                return authenticateStep2(Arrays.copyOfRange(data, 1, 17));
+            default:
+                throw nak();
+        }
+    }
+
+    private byte[] read(int page) throws IOException {
+        if (page > LAST_READABLE_PAGE || isReadProtected(page)) throw nak();
+
+        byte[] response = new byte[16];
+        for (int i = 0; i < 4; i++) {
+            int p = page + i;
+            if (p > LAST_READABLE_PAGE) p -= LAST_READABLE_PAGE + 1;
+            // Reading rolls over to page 0 at the start of a protected area
+            if (isReadProtected(p)) p -= getAuth0();
+            System.arraycopy(memory, p * 4, response, i * 4, 4);
+        }
+        return response;
+    }
+
+    private byte[] write(int page, byte[] data) throws IOException {
+        if (page < LOCK_PAGE || page >= PAGES) throw nak();
+        if (isWriteProtected(page) || isLocked(page)) throw nak();
+
+        int offset = page * 4;
+        switch (page) {
+            case LOCK_PAGE:
+                memory[offset + 2] |= data[2];
+                memory[offset + 3] |= data[3];
+                break;
+            case OTP_PAGE:
+                for (int i = 0; i < 4; i++) memory[offset + i] |= data[i];
+                break;
+            case DYNAMIC_LOCK_PAGE:
+                memory[offset] |= data[0];
+                memory[offset + 1] |= data[1];
+                break;
+            case COUNTER_PAGE:
+                int counter = (memory[offset] & 0xFF) | (memory[offset + 1] & 0xFF) << 8;
+                int increment = (data[0] & 0xFF) | (data[1] & 0xFF) << 8;
+                if (counter + increment > 0xFFFF) throw nak();
+                counter += increment;
+                memory[offset] = (byte) counter;
+                memory[offset + 1] = (byte) (counter >> 8);
+                break;
+            default:
+                System.arraycopy(data, 0, memory, offset, 4);
+        }
+        return ACK.clone();
+    }
+
+    private byte[] authenticateStep1() {
+        rndB = new byte[8];
+        random.nextBytes(rndB);
+        ekRndB = TripleDES.encrypt(new byte[8], getKey(), rndB);
+
+        byte[] response = new byte[9];
+        response[0] = (byte) 0xAF;
+        System.arraycopy(ekRndB, 0, response, 1, 8);
+        return response;
+    }
+
+    private byte[] authenticateStep2(byte[] ekRndARndB) throws IOException {
+        byte[] key = getKey();
+        byte[] rndARndB = TripleDES.decrypt(ekRndB, key, ekRndARndB);
+        byte[] expected = rotate(rndB);
+        rndB = null;
+        if (!Arrays.equals(Arrays.copyOfRange(rndARndB, 8, 16), expected)) throw nak();
+
+        byte[] rndA = Arrays.copyOfRange(rndARndB, 0, 8);
+        byte[] iv = Arrays.copyOfRange(ekRndARndB, 8, 16);
+        byte[] ekRndA = TripleDES.encrypt(iv, key, rotate(rndA));
+
+        authenticated = true;
+        byte[] response = new byte[9];
+        response[0] = (byte) 0x00;
+        System.arraycopy(ekRndA, 0, response, 1, 8);
+        return response;
+    }
+
+    /**
+     * The 24-byte 3DES key. Both 8-byte halves are stored in reversed byte order.
+     */
+    private byte[] getKey() {
+        byte[] key = new byte[24];
+        for (int i = 0; i < 8; i++) {
+            key[i] = memory[KEY_PAGE * 4 + 7 - i];
+            key[8 + i] = memory[KEY_PAGE * 4 + 15 - i];
+        }
+        System.arraycopy(key, 0, key, 16, 8);
+        return key;
+    }
+
+    private static byte[] rotate(byte[] a) {
+        byte[] r = new byte[a.length];
+        System.arraycopy(a, 1, r, 0, a.length - 1);
+        r[a.length - 1] = a[0];
+        return r;
+    }
+
+    private int getAuth0() {
+        return memory[AUTH0_PAGE * 4] & 0xFF;
+    }
+
+    private boolean isWriteProtected(int page) {
+        return !authenticated && page >= getAuth0();
+    }
+
+    private boolean isReadProtected(int page) {
+        boolean writeOnly = (memory[AUTH1_PAGE * 4] & 0x01) != 0;
+        return !writeOnly && isWriteProtected(page);
+    }
+
+    private boolean isLocked(int page) {
+        if (page >= OTP_PAGE && page <= 7) {
+            return (memory[LOCK_PAGE * 4 + 2] & (1 << page)) != 0;
+        } else if (page >= 8 && page <= 15) {
+            return (memory[LOCK_PAGE * 4 + 3] & (1 << (page - 8))) != 0;
+        } else if (page >= 16 && page <= 27) {
+            return (memory[DYNAMIC_LOCK_PAGE * 4] & (1 << ((page / 4) - 3))) != 0;
+        } else if (page >= 28 && page <= 39) {
+            return (memory[DYNAMIC_LOCK_PAGE * 4] & (1 << ((page / 4) - 2))) != 0;
+        }
+        return false;
+    }
+
+    private IOException nak() {
+        halted = true;
+        authenticated = false;
+        rndB = null;
+        return new IOException("Transceive failed");
+    }
+}
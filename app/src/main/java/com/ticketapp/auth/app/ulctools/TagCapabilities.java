@@ -0,0 +1,166 @@
+package com.ticketapp.auth.app.ulctools;
+
+/**
+ * Developed for Aalto University course CS-E4300 Network Security.
+ * Copyright (C) 2021-2022 Aalto University
+ */
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * What a card supports: its type and memory size, FAST_READ, authentication and the
+ * configured memory protection (AUTH0 / AUTH1).
+ * <p/>
+ * A card is probed once when it is discovered, see {@link #probe(CardSession)}, and the
+ * result is kept by UID for the following taps. Writes to the AUTH0 / AUTH1 pages through
+ * a {@link CardSession} keep the cached values up to date.
+ */
+public class TagCapabilities {
+
+    /** AUTH0 or AUTH1 could not be read */
+    public static final int UNKNOWN = -1;
+
+    private static final int AUTH0_PAGE = 42;
+    private static final int AUTH1_PAGE = 43;
+    private static final int CACHE_SIZE = 32;
+
+    private static final Map<String, TagCapabilities> cache =
+            new LinkedHashMap<String, TagCapabilities>(CACHE_SIZE, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, TagCapabilities> eldest) {
+                    return size() > CACHE_SIZE;
+                }
+            };
+
+    private final TagType type;
+    private final int auth0;
+    private final int auth1;
+
+    /**
+     * @param type  type of the card
+     * @param auth0 first protected page, UNKNOWN if not known
+     * @param auth1 protection mode (bit 0 set: write protection only), UNKNOWN if not known
+     */
+    public TagCapabilities(TagType type, int auth0, int auth1) {
+        this.type = type;
+        this.auth0 = auth0;
+        this.auth1 = auth1;
+    }
+
+    public TagType getType() {
+        return type;
+    }
+
+    public int getPageCount() {
+        return type.getPageCount();
+    }
+
+    public boolean supportsFastRead() {
+        return type.supportsFastRead();
+    }
+
+    /**
+     * @return true if the card supports the 3DES authentication and memory protection
+     */
+    public boolean supportsAuthentication() {
+        return type == TagType.ULTRALIGHT_C;
+    }
+
+    public int getAuth0() {
+        return auth0;
+    }
+
+    public int getAuth1() {
+        return auth1;
+    }
+
+    /**
+     * @return number of pages from page 0 that can be read without authentication
+     */
+    public int getReadablePages() {
+        if (!supportsAuthentication() || auth0 == UNKNOWN || auth1 == UNKNOWN) return getPageCount();
+        if ((auth1 & 0x01) != 0) return getPageCount();
+        return Math.min(auth0, getPageCount());
+    }
+
+    /**
+     * Get the capabilities of a card probed earlier.
+     *
+     * @param uid UID of the card
+     * @return the capabilities, null if the card has not been probed
+     */
+    public static TagCapabilities get(byte[] uid) {
+        synchronized (cache) {
+            return cache.get(Dump.hex(uid, false));
+        }
+    }
+
+    /**
+     * Get the capabilities of the card of the session, probing the card if it is not cached.
+     * The card type is detected and, on an Ultralight C, AUTH0 and AUTH1 are read.
+     *
+     * @param session open session with the card
+     * @return capabilities of the card
+     */
+    public static TagCapabilities probe(CardSession session) {
+        byte[] uid = session.getTransport().getId();
+        TagCapabilities capabilities = get(uid);
+        if (capabilities != null) return capabilities;
+
+        session.markKind(TransceiveTrace.KIND_PROBE);
+        TagType type = session.getTagType();
+        int auth0 = UNKNOWN;
+        int auth1 = UNKNOWN;
+        if (type == TagType.ULTRALIGHT_C) {
+            // Pages 40-43 in one READ, fails if they are read protected
+            byte[] pages = session.readPageOnce(40);
+            if (pages != null && pages.length >= 16) {
+                auth0 = pages[(AUTH0_PAGE - 40) * 4] & 0xFF;
+                auth1 = pages[(AUTH1_PAGE - 40) * 4] & 0xFF;
+            }
+        }
+        capabilities = new TagCapabilities(type, auth0, auth1);
+        synchronized (cache) {
+            cache.put(Dump.hex(uid, false), capabilities);
+        }
+        return capabilities;
+    }
+
+    /**
+     * Update the cached AUTH0 or AUTH1 after a write to its page.
+     *
+     * @param uid  UID of the card
+     * @param page page written
+     * @param data data written to the page
+     */
+    static void pageWritten(byte[] uid, int page, byte[] data) {
+        if (page != AUTH0_PAGE && page != AUTH1_PAGE) return;
+        synchronized (cache) {
+            String key = Dump.hex(uid, false);
+            TagCapabilities old = cache.get(key);
+            if (old == null) return;
+            int value = data[0] & 0xFF;
+            cache.put(key, new TagCapabilities(old.type,
+                    page == AUTH0_PAGE ? value : old.auth0,
+                    page == AUTH1_PAGE ? value : old.auth1));
+        }
+    }
+
+    /**
+     * Forget the capabilities of a card, e.g. of a simulated card.
+     *
+     * @param uid UID of the card
+     */
+    public static void forget(byte[] uid) {
+        synchronized (cache) {
+            cache.remove(Dump.hex(uid, false));
+        }
+    }
+
+    public static void clear() {
+        synchronized (cache) {
+            cache.clear();
+        }
+    }
+}
@@ -0,0 +1,74 @@
+package com.ticketapp.auth.app.ulctools;
+
+/**
+ * Developed for Aalto University course CS-E4300 Network Security.
+ * Copyright (C) 2021-2022 Aalto University
+ */
+
+/**
+ * Memory geometry and command support of the supported card types.
+ * <p/>
+ * Ultralight C is recognised by Android itself, Ultralight EV1 and NTAG21x report
+ * themselves as plain Ultralight and are told apart with the GET_VERSION (0x60) command.
+ */
+public enum TagType {
+    UNKNOWN("unknown type", 44, false),
+    ULTRALIGHT("Ultralight", 16, false),
+    ULTRALIGHT_C("Ultralight C", 44, false),
+    ULTRALIGHT_EV1_MF0UL11("Ultralight EV1 (MF0UL11)", 20, true),
+    ULTRALIGHT_EV1_MF0UL21("Ultralight EV1 (MF0UL21)", 41, true),
+    NTAG213("NTAG213", 45, true),
+    NTAG215("NTAG215", 135, true),
+    NTAG216("NTAG216", 231, true);
+
+    private final String name;
+    private final int pageCount;
+    private final boolean fastRead;
+
+    TagType(String name, int pageCount, boolean fastRead) {
+        this.name = name;
+        this.pageCount = pageCount;
+        this.fastRead = fastRead;
+    }
+
+    /**
+     * @return name of the card type shown to the user
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return number of pages that can be read from the card, starting from page 0
+     */
+    public int getPageCount() {
+        return pageCount;
+    }
+
+    /**
+     * @return true if the card supports the FAST_READ (0x3A) command
+     */
+    public boolean supportsFastRead() {
+        return fastRead;
+    }
+
+    /**
+     * Get the card type from a GET_VERSION response.
+     *
+     * @param version 8-byte response of the GET_VERSION command
+     * @return card type, or ULTRALIGHT if the response is not recognised
+     */
+    public static TagType fromVersion(byte[] version) {
+        if (version == null || version.length < 8 || version[1] != 0x04) return ULTRALIGHT;
+        // byte 2 is the product type, byte 6 the storage size
+        if (version[2] == 0x03) {
+            if (version[6] == 0x0B) return ULTRALIGHT_EV1_MF0UL11;
+            if (version[6] == 0x0E) return ULTRALIGHT_EV1_MF0UL21;
+        } else if (version[2] == 0x04) {
+            if (version[6] == 0x0F) return NTAG213;
+            if (version[6] == 0x11) return NTAG215;
+            if (version[6] == 0x13) return NTAG216;
+        }
+        return ULTRALIGHT;
+    }
+}
@@ -0,0 +1,75 @@
+package com.ticketapp.auth.app.ulctools;
+
+/**
+ * Developed for Aalto University course CS-E4300 Network Security.
+ * Copyright (C) 2021-2022 Aalto University
+ */
+
+import java.util.Arrays;
+
+/**
+ * Durations and outcomes of a series of taps, e.g. Ticket.use() runs against a
+ * {@link FaultInjectingTransport}.
+ */
+public class TapStatistics {
+
+    private long[] durations = new long[64];
+    private int count = 0;
+    private int failures = 0;
+
+    /**
+     * @param nanos   duration of the tap in nanoseconds
+     * @param success true if the tap succeeded
+     */
+    public void record(long nanos, boolean success) {
+        if (count == durations.length) {
+            durations = Arrays.copyOf(durations, count * 2);
+        }
+        durations[count++] = nanos;
+        if (!success) failures++;
+    }
+
+    public int getCount() {
+        return count;
+    }
+
+    public int getFailures() {
+        return failures;
+    }
+
+    /**
+     * @return share of failed taps (0 - 1)
+     */
+    public double getFailureRate() {
+        return count == 0 ? 0 : (double) failures / count;
+    }
+
+    /**
+     * @param percentile percentile (0 - 100), e.g. 99
+     * @return duration in nanoseconds not exceeded by the given share of the taps
+     */
+    public long getPercentile(double percentile) {
+        if (count == 0) return 0;
+        long[] sorted = Arrays.copyOf(durations, count);
+        Arrays.sort(sorted);
+        int index = (int) Math.ceil(percentile / 100 * count) - 1;
+        return sorted[Math.max(0, Math.min(index, count - 1))];
+    }
+
+    /**
+     * @return mean duration in nanoseconds
+     */
+    public long getMean() {
+        if (count == 0) return 0;
+        long sum = 0;
+        for (int i = 0; i < count; i++) sum += durations[i];
+        return sum / count;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("taps: %d, failed: %.1f%%, mean: %.1f ms, p50: %.1f ms, p99: %.1f ms",
+                count, getFailureRate() * 100, getMean() / 1e6,
+                getPercentile(50) / 1e6, getPercentile(99) / 1e6);
+    }
+}
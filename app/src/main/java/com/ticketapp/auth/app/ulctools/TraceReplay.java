@@ -0,0 +1,218 @@
+package com.ticketapp.auth.app.ulctools;
+
+/**
+ * Developed for Aalto University course CS-E4300 Network Security.
+ * Copyright (C) 2021-2022 Aalto University
+ */
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Card that answers with the responses of a recorded {@link TransceiveTrace}.
+ * <p/>
+ * The trace is replayed one session at a time, see {@link #nextSession()}. What the session
+ * was used for is given by {@link #getSessionKinds()}, so the caller can run the same steps
+ * or skip the session. Every command
+ * sent must be the next recorded command of the session byte for byte, otherwise the
+ * replay counts a mismatch and fails the command. Writes to the key pages are compared
+ * by opcode and page only, as recorded. Commands that failed in the recording fail again,
+ * so error paths are replayed as well.
+ * <p/>
+ * The authentication challenge of the reader is random, so replaying an authentication
+ * needs the challenges recorded in the trace (see {@link TransceiveTrace#setRecordNonces(boolean)})
+ * and the session using {@link #getNonceSource()}.
+ */
+public class TraceReplay implements CardTransport {
+
+    private final TransceiveTrace trace;
+    private final int type;
+    private int position = 0;
+    private int sessionStart = 0;
+    private boolean connected = false;
+    private int mismatches = 0;
+    private String firstMismatch;
+
+    private final Random nonceSource = new Random() {
+        @Override
+        public void nextBytes(byte[] bytes) {
+            skipKinds();
+            if (!isNext(TransceiveTrace.NONCE) || trace.getRequest(position).length != bytes.length) {
+                mismatch("reader challenge");
+                Arrays.fill(bytes, (byte) 0x00);
+                return;
+            }
+            System.arraycopy(trace.getRequest(position), 0, bytes, 0, bytes.length);
+            position++;
+        }
+    };
+
+    /**
+     * @param trace recorded trace of an Ultralight C card
+     */
+    public TraceReplay(TransceiveTrace trace) {
+        this(trace, TYPE_ULTRALIGHT_C);
+    }
+
+    /**
+     * @param trace recorded trace
+     * @param type  card type reported to the session, one of the TYPE_ constants
+     */
+    public TraceReplay(TransceiveTrace trace, int type) {
+        this.trace = trace;
+        this.type = type;
+    }
+
+    /**
+     * Move to the start of the next recorded session. Commands of the current
+     * session that were not replayed are skipped.
+     *
+     * @return false if there are no more sessions
+     */
+    public boolean nextSession() {
+        while (position < trace.size() && trace.getOutcome(position) != TransceiveTrace.SESSION) {
+            position++;
+        }
+        if (position == trace.size()) return false;
+        position++;
+        sessionStart = position;
+        return true;
+    }
+
+    /**
+     * @return wall clock time when the current session was recorded, in milliseconds
+     */
+    public long getSessionTime() {
+        byte[] time = trace.getRequest(sessionStart - 1);
+        return time.length >= 8 ? ByteBuffer.wrap(time).getLong() : 0;
+    }
+
+    /**
+     * @return true if every recorded command of the current session has been replayed
+     */
+    public boolean isSessionComplete() {
+        skipKinds();
+        return position == trace.size() || trace.getOutcome(position) == TransceiveTrace.SESSION;
+    }
+
+    /**
+     * @return what the current session was used for, in order, as TransceiveTrace.KIND_
+     * values; empty if the session was not marked, e.g. a dump
+     */
+    public List<Integer> getSessionKinds() {
+        List<Integer> kinds = new ArrayList<Integer>();
+        for (int i = sessionStart; i < trace.size() && trace.getOutcome(i) != TransceiveTrace.SESSION; i++) {
+            if (trace.getOutcome(i) == TransceiveTrace.KIND) kinds.add(trace.getRequest(i)[0] & 0xFF);
+        }
+        return kinds;
+    }
+
+    /**
+     * Source of the reader challenges recorded in the trace, for
+     * {@link CardSession#setNonceSource(Random)}.
+     */
+    public Random getNonceSource() {
+        return nonceSource;
+    }
+
+    /**
+     * @return number of commands that differed from the recording
+     */
+    public int getMismatches() {
+        return mismatches;
+    }
+
+    /**
+     * @return description of the first mismatch, null if there was none
+     */
+    public String getFirstMismatch() {
+        return firstMismatch;
+    }
+
+    @Override
+    public void connect() {
+        connected = true;
+    }
+
+    @Override
+    public void close() {
+        connected = false;
+    }
+
+    @Override
+    public boolean isConnected() {
+        return connected;
+    }
+
+    @Override
+    public void setTimeout(int millis) {
+    }
+
+    @Override
+    public int getMaxTransceiveLength() {
+        return 253;
+    }
+
+    @Override
+    public int getType() {
+        return type;
+    }
+
+    /**
+     * UID recorded at the start of the current session, or from the first read of page 0
+     * in the session for older recordings.
+     *
+     * @return 7-byte UID, all zero if the UID was not recorded
+     */
+    @Override
+    public byte[] getId() {
+        byte[] start = trace.getRequest(sessionStart - 1);
+        if (start.length > 8) return Arrays.copyOfRange(start, 8, start.length);
+        byte[] uid = new byte[7];
+        for (int i = sessionStart; i < trace.size() && trace.getOutcome(i) != TransceiveTrace.SESSION; i++) {
+            byte[] response = trace.getResponse(i);
+            if (trace.getOpcode(i) == 0x30 && trace.getPage(i) == 0 && response != null && response.length >= 8) {
+                System.arraycopy(response, 0, uid, 0, 3);
+                System.arraycopy(response, 4, uid, 3, 4);
+                break;
+            }
+        }
+        return uid;
+    }
+
+    @Override
+    public byte[] transceive(byte[] data) throws IOException {
+        if (!connected) throw new IOException("Not connected");
+        skipKinds();
+        if (!isNext(TransceiveTrace.OK) && !isNext(TransceiveTrace.FAILED)) {
+            mismatch("unexpected command " + Dump.hex(data, false));
+            throw new IOException("Replay mismatch");
+        }
+        if (!Arrays.equals(TransceiveTrace.redact(data), trace.getRequest(position))) {
+            mismatch("expected " + Dump.hex(trace.getRequest(position), false)
+                    + ", got " + Dump.hex(data, false));
+            position++;
+            throw new IOException("Replay mismatch");
+        }
+        byte[] response = trace.getResponse(position++);
+        if (response == null) throw new IOException("Transceive failed");
+        return response;
+    }
+
+    private void skipKinds() {
+        while (isNext(TransceiveTrace.KIND)) position++;
+    }
+
+    private boolean isNext(int outcome) {
+        return position < trace.size() && trace.getOutcome(position) == outcome;
+    }
+
+    private void mismatch(String description) {
+        if (firstMismatch == null) firstMismatch = "entry " + position + ": " + description;
+        mismatches++;
+    }
+}
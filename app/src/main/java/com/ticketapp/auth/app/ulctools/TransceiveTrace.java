@@ -0,0 +1,329 @@
+package com.ticketapp.auth.app.ulctools;
+
+/**
+ * Developed for Aalto University course CS-E4300 Network Security.
+ * Copyright (C) 2021-2022 Aalto University
+ */
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.util.Arrays;
+
+/**
+ * Recorder of every command sent to the card, with nanosecond timings.
+ * <p/>
+ * All storage is allocated up front: recording a command only copies the request and
+ * response bytes into a shared buffer. When either the entries or the byte buffer run out,
+ * further commands are counted as dropped instead of recorded.
+ * <p/>
+ * The trace can be exported as compact binary (see {@link #writeBinary(OutputStream)})
+ * or as JSON, and summarised per opcode.
+ * <p/>
+ * Besides the commands, the trace marks the start of each session, what the session is
+ * used for (see {@link #KIND}) and, if enabled with {@link #setRecordNonces(boolean)}, the
+ * authentication challenges of the reader. They are needed to replay the trace with
+ * {@link TraceReplay}.
+ * <p/>
+ * Writes to the key pages are recorded without their data, see {@link #redact(byte[])},
+ * so a saved trace does not hold the 3DES keys written to the cards.
+ */
+public class TransceiveTrace {
+
+    public static final int OK = 0;
+    public static final int FAILED = 1;
+    /** Not a command: challenge RndA generated for an authentication, stored as the request */
+    public static final int NONCE = 2;
+    /** Not a command: start of a new session, with System.currentTimeMillis() and the card UID as the request */
+    public static final int SESSION = 3;
+    /** Not a command: what the session does from here on, one of the KIND_ values as the request */
+    public static final int KIND = 4;
+
+    /** Capabilities probe of a newly seen card */
+    public static final int KIND_PROBE = 1;
+    /** Key derivation and authentication as soon as the card is seen, before an issue or use */
+    public static final int KIND_PREPARE = 2;
+    public static final int KIND_ISSUE = 3;
+    public static final int KIND_USE = 4;
+
+    /** First page of the 3DES key, writes from here on are recorded without their data */
+    public static final int FIRST_KEY_PAGE = 0x2C;
+
+    /** Binary format: magic, version, entry count, then the entries */
+    static final int MAGIC = 0x54524345; // "TRCE"
+    static final int VERSION = 1;
+
+    private final long[] start;
+    private final long[] duration;
+    private final byte[] outcome;
+    private final int[] requestOffset;
+    private final short[] requestLength;
+    private final int[] responseOffset;
+    private final short[] responseLength;
+    private final byte[] bytes;
+
+    private int count = 0;
+    private int bytesUsed = 0;
+    private int dropped = 0;
+    private boolean recordNonces = false;
+
+    /**
+     * @param entries  maximum number of commands recorded
+     * @param byteSize maximum number of request and response bytes recorded
+     */
+    public TransceiveTrace(int entries, int byteSize) {
+        start = new long[entries];
+        duration = new long[entries];
+        outcome = new byte[entries];
+        requestOffset = new int[entries];
+        requestLength = new short[entries];
+        responseOffset = new int[entries];
+        responseLength = new short[entries];
+        bytes = new byte[byteSize];
+    }
+
+    /**
+     * Record one command.
+     *
+     * @param request       command sent to the card
+     * @param response      response of the card, null if the command failed
+     * @param startNanos    System.nanoTime() before sending
+     * @param durationNanos time until the response or the failure
+     * @param result        OK or FAILED
+     */
+    public synchronized void record(byte[] request, byte[] response, long startNanos,
+                                    long durationNanos, int result) {
+        if (result <= FAILED) request = redact(request);
+        int responseSize = response == null ? 0 : response.length;
+        if (count == start.length || bytesUsed + request.length + responseSize > bytes.length) {
+            dropped++;
+            return;
+        }
+        start[count] = startNanos;
+        duration[count] = durationNanos;
+        outcome[count] = (byte) result;
+
+        requestOffset[count] = bytesUsed;
+        requestLength[count] = (short) request.length;
+        System.arraycopy(request, 0, bytes, bytesUsed, request.length);
+        bytesUsed += request.length;
+
+        responseOffset[count] = bytesUsed;
+        responseLength[count] = (short) responseSize;
+        if (response != null) {
+            System.arraycopy(response, 0, bytes, bytesUsed, responseSize);
+            bytesUsed += responseSize;
+        }
+        count++;
+    }
+
+    /**
+     * @param request command sent to the card
+     * @return the command as recorded: a WRITE to the key pages cut to opcode and page,
+     * any other command unchanged
+     */
+    public static byte[] redact(byte[] request) {
+        if (request.length > 2 && (request[0] & 0xFF) == 0xA2 && (request[1] & 0xFF) >= FIRST_KEY_PAGE) {
+            return Arrays.copyOf(request, 2);
+        }
+        return request;
+    }
+
+    /**
+     * Record an event that is not a command.
+     *
+     * @param type NONCE, SESSION or KIND
+     * @param data challenge for NONCE, 8-byte wall clock time and UID for SESSION,
+     *             one byte KIND_ value for KIND
+     */
+    public void recordEvent(int type, byte[] data) {
+        record(data, null, System.nanoTime(), 0, type);
+    }
+
+    /**
+     * Record the authentication challenges (RndA) of the reader. They are needed for
+     * replaying authentications, but also give known plaintext for the card key, so
+     * this is off by default.
+     *
+     * @param recordNonces true to record the challenges
+     */
+    public synchronized void setRecordNonces(boolean recordNonces) {
+        this.recordNonces = recordNonces;
+    }
+
+    public synchronized boolean isRecordingNonces() {
+        return recordNonces;
+    }
+
+    public synchronized int size() {
+        return count;
+    }
+
+    /**
+     * @return number of commands not recorded because the trace was full
+     */
+    public synchronized int getDropped() {
+        return dropped;
+    }
+
+    public synchronized void clear() {
+        count = 0;
+        bytesUsed = 0;
+        dropped = 0;
+    }
+
+    public synchronized int getOpcode(int i) {
+        return outcome[i] <= FAILED && requestLength[i] > 0 ? bytes[requestOffset[i]] & 0xFF : -1;
+    }
+
+    /**
+     * @return page addressed by the command, -1 if the command has no page
+     */
+    public synchronized int getPage(int i) {
+        int opcode = getOpcode(i);
+        if ((opcode == 0x30 || opcode == 0xA2 || opcode == 0x3A) && requestLength[i] > 1) {
+            return bytes[requestOffset[i] + 1] & 0xFF;
+        }
+        return -1;
+    }
+
+    public synchronized long getStart(int i) {
+        return start[i];
+    }
+
+    public synchronized long getDuration(int i) {
+        return duration[i];
+    }
+
+    public synchronized int getOutcome(int i) {
+        return outcome[i];
+    }
+
+    public synchronized byte[] getRequest(int i) {
+        return Arrays.copyOfRange(bytes, requestOffset[i], requestOffset[i] + requestLength[i]);
+    }
+
+    /**
+     * @return response of the command, null if the command failed
+     */
+    public synchronized byte[] getResponse(int i) {
+        if (outcome[i] != OK) return null;
+        return Arrays.copyOfRange(bytes, responseOffset[i], responseOffset[i] + responseLength[i]);
+    }
+
+    /**
+     * Write the trace in the compact binary format.
+     * Each entry is start and duration (8 bytes each), outcome (1 byte),
+     * and request and response as 2-byte length and data.
+     *
+     * @param out stream to write to
+     * @throws IOException if writing failed
+     */
+    public synchronized void writeBinary(OutputStream out) throws IOException {
+        DataOutputStream data = new DataOutputStream(out);
+        data.writeInt(MAGIC);
+        data.writeShort(VERSION);
+        data.writeInt(count);
+        for (int i = 0; i < count; i++) {
+            data.writeLong(start[i]);
+            data.writeLong(duration[i]);
+            data.writeByte(outcome[i]);
+            data.writeShort(requestLength[i]);
+            data.write(bytes, requestOffset[i], requestLength[i]);
+            data.writeShort(responseLength[i]);
+            data.write(bytes, responseOffset[i], responseLength[i]);
+        }
+        data.flush();
+    }
+
+    /**
+     * Read a trace written by {@link #writeBinary(OutputStream)}.
+     *
+     * @param in stream to read from
+     * @return the trace, with room for exactly the recorded entries
+     * @throws IOException if reading failed or the data is not a trace
+     */
+    public static TransceiveTrace readBinary(InputStream in) throws IOException {
+        DataInputStream data = new DataInputStream(in);
+        if (data.readInt() != MAGIC || data.readShort() != VERSION) {
+            throw new IOException("Not a trace");
+        }
+        int entries = data.readInt();
+        long[] start = new long[entries];
+        long[] duration = new long[entries];
+        int[] result = new int[entries];
+        byte[][] requests = new byte[entries][];
+        byte[][] responses = new byte[entries][];
+        int size = 0;
+        for (int i = 0; i < entries; i++) {
+            start[i] = data.readLong();
+            duration[i] = data.readLong();
+            result[i] = data.readByte();
+            requests[i] = new byte[data.readShort()];
+            data.readFully(requests[i]);
+            responses[i] = new byte[data.readShort()];
+            data.readFully(responses[i]);
+            size += requests[i].length + responses[i].length;
+        }
+        TransceiveTrace trace = new TransceiveTrace(entries, size);
+        for (int i = 0; i < entries; i++) {
+            trace.record(requests[i], result[i] == OK ? responses[i] : null,
+                    start[i], duration[i], result[i]);
+        }
+        return trace;
+    }
+
+    /**
+     * Write the trace as a JSON array with one object per command.
+     *
+     * @param out writer to write to
+     * @throws IOException if writing failed
+     */
+    public synchronized void writeJson(Writer out) throws IOException {
+        out.write("[");
+        for (int i = 0; i < count; i++) {
+            if (i > 0) out.write(",");
+            out.write("\n{\"start\":" + start[i]
+                    + ",\"duration\":" + duration[i]
+                    + ",\"opcode\":" + getOpcode(i)
+                    + ",\"page\":" + getPage(i)
+                    + ",\"type\":" + outcome[i]
+                    + ",\"request\":\"" + Dump.hex(getRequest(i), false) + "\""
+                    + ",\"response\":\"" + Dump.hex(Arrays.copyOfRange(bytes, responseOffset[i],
+                    responseOffset[i] + responseLength[i]), false) + "\"}");
+        }
+        out.write("\n]\n");
+        out.flush();
+    }
+
+    /**
+     * Latency breakdown per opcode: count, failures, mean, p50, p99 and max.
+     *
+     * @return one line per opcode
+     */
+    public synchronized String summary() {
+        StringBuilder sb = new StringBuilder();
+        boolean[] done = new boolean[256];
+        for (int i = 0; i < count; i++) {
+            int opcode = getOpcode(i);
+            if (opcode < 0 || done[opcode]) continue;
+            done[opcode] = true;
+
+            TapStatistics stats = new TapStatistics();
+            long max = 0;
+            for (int j = i; j < count; j++) {
+                if (getOpcode(j) != opcode) continue;
+                stats.record(duration[j], outcome[j] == OK);
+                max = Math.max(max, duration[j]);
+            }
+            sb.append(String.format("0x%02X: n=%d failed=%d mean=%.2fms p50=%.2fms p99=%.2fms max=%.2fms\n",
+                    opcode, stats.getCount(), stats.getFailures(), stats.getMean() / 1e6,
+                    stats.getPercentile(50) / 1e6, stats.getPercentile(99) / 1e6, max / 1e6));
+        }
+        if (dropped > 0) sb.append("dropped: ").append(dropped).append("\n");
+        return sb.toString();
+    }
+}
@@ -1,5 +1,9 @@
 package com.ticketapp.auth.app.ulctools;
 
+import java.nio.ByteBuffer;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
 import javax.crypto.Cipher;
 import javax.crypto.SecretKey;
 import javax.crypto.SecretKeyFactory;
@@ -8,6 +12,89 @@ import javax.crypto.spec.IvParameterSpec;
 
 public class TripleDES {
 
+    private static final int CACHE_SIZE = 16;
+
+    // Key handles of the card keys used last, by the 16-byte key as written to the card
+    private static final Map<ByteBuffer, Key> cardKeys =
+            new LinkedHashMap<ByteBuffer, Key>(CACHE_SIZE, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<ByteBuffer, Key> eldest) {
+                    return size() > CACHE_SIZE;
+                }
+            };
+
+    // Looking up the provider is slow, so every thread keeps its cipher
+    private static final ThreadLocal<Cipher> ciphers = new ThreadLocal<Cipher>() {
+        @Override
+        protected Cipher initialValue() {
+            try {
+                return Cipher.getInstance("DESede/CBC/NoPadding");
+            } catch (Exception e) {
+                e.printStackTrace();
+                return null;
+            }
+        }
+    };
+
+    /**
+     * A 3DES key expanded once, for encrypting and decrypting many times.
+     */
+    public static final class Key {
+        private final SecretKey key;
+
+        private Key(SecretKey key) {
+            this.key = key;
+        }
+    }
+
+    /**
+     * Prepare a key for {@link #encrypt(byte[], Key, byte[])} and
+     * {@link #decrypt(byte[], Key, byte[])}.
+     *
+     * @param myKey Secret key (24 Bytes)
+     * @return The key handle, or <code>null</code> on error.
+     */
+    public static Key prepare(byte[] myKey) {
+        try {
+            DESedeKeySpec desKey = new DESedeKeySpec(myKey);
+            SecretKeyFactory keyFactory = SecretKeyFactory
+                    .getInstance("DESede");
+            return new Key(keyFactory.generateSecret(desKey));
+        } catch (Exception e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    /**
+     * Get the key handle of an Ultralight C key. The halves of the key are byte reversed
+     * and the first half repeated as the third 3DES key, see
+     * {@link Reader#getFormattedByteKey(byte[])}. Handles of recently used keys are kept,
+     * so authenticating again with the same key does not expand it again.
+     *
+     * @param cardKey key as written to the card (16 Bytes)
+     * @return The key handle, or <code>null</code> on error.
+     */
+    public static Key forCardKey(byte[] cardKey) {
+        ByteBuffer id = ByteBuffer.wrap(cardKey.clone());
+        synchronized (cardKeys) {
+            Key key = cardKeys.get(id);
+            if (key != null) return key;
+        }
+
+        byte[] byteKey = Reader.getFormattedByteKey(cardKey);
+        byte[] myKey = new byte[24];
+        System.arraycopy(byteKey, 0, myKey, 0, 16);
+        System.arraycopy(byteKey, 0, myKey, 16, 8);
+        Key key = prepare(myKey);
+        if (key == null) return null;
+
+        synchronized (cardKeys) {
+            cardKeys.put(id, key);
+        }
+        return key;
+    }
+
     /**
      * Encrypt using 3DES: DESede/CBC/NoPadding.
      *
@@ -17,17 +104,24 @@ public class TripleDES {
      * @return The encrypted message, or <code>null</code> on error.
      */
     public static byte[] encrypt(byte[] myIV, byte[] myKey, byte[] myMsg) {
+        Key key = prepare(myKey);
+        return key == null ? null : encrypt(myIV, key, myMsg);
+    }
+
+    /**
+     * Encrypt using 3DES: DESede/CBC/NoPadding.
+     *
+     * @param myIV  Initialization vector
+     * @param myKey Prepared key
+     * @param myMsg Message to encrypt
+     * @return The encrypted message, or <code>null</code> on error.
+     */
+    public static byte[] encrypt(byte[] myIV, Key myKey, byte[] myMsg) {
         byte[] cipherText = null;
 
         try {
-            IvParameterSpec iv = new IvParameterSpec(myIV);
-            DESedeKeySpec desKey = new DESedeKeySpec(myKey);
-            SecretKeyFactory keyFactory = SecretKeyFactory
-                    .getInstance("DESede");
-            SecretKey key = keyFactory.generateSecret(desKey);
-
-            Cipher cipher = Cipher.getInstance("DESede/CBC/NoPadding");
-            cipher.init(Cipher.ENCRYPT_MODE, key, iv);
+            Cipher cipher = ciphers.get();
+            cipher.init(Cipher.ENCRYPT_MODE, myKey.key, new IvParameterSpec(myIV));
             cipherText = cipher.doFinal(myMsg);
         } catch (Exception e) {
             e.printStackTrace();
@@ -51,17 +145,29 @@ public class TripleDES {
 
     public static byte[] decrypt(byte[] myIV, byte[] myKey, byte[] myMsg,
                                  int offset, int length) {
+        Key key = prepare(myKey);
+        return key == null ? null : decrypt(myIV, key, myMsg, offset, length);
+    }
+
+    /**
+     * Decrypt using 3DES: DESede/CBC/NoPadding.
+     *
+     * @param myIV  The initialization vector
+     * @param myKey Prepared key
+     * @param myMsg Message to decrypt
+     * @return The decrypted message, or <code>null</code> on error.
+     */
+    public static byte[] decrypt(byte[] myIV, Key myKey, byte[] myMsg) {
+        return decrypt(myIV, myKey, myMsg, 0, myMsg.length);
+    }
+
+    public static byte[] decrypt(byte[] myIV, Key myKey, byte[] myMsg,
+                                 int offset, int length) {
         byte[] plainText = null;
 
         try {
-            IvParameterSpec iv = new IvParameterSpec(myIV);
-            DESedeKeySpec desKey = new DESedeKeySpec(myKey);
-            SecretKeyFactory keyFactory = SecretKeyFactory
-                    .getInstance("DESede");
-            SecretKey key = keyFactory.generateSecret(desKey);
-
-            Cipher cipher = Cipher.getInstance("DESede/CBC/NoPadding");
-            cipher.init(Cipher.DECRYPT_MODE, key, iv);
+            Cipher cipher = ciphers.get();
+            cipher.init(Cipher.DECRYPT_MODE, myKey.key, new IvParameterSpec(myIV));
             plainText = cipher.doFinal(myMsg, offset, length);
         } catch (Exception e) {
             e.printStackTrace();
@@ -70,4 +176,4 @@ public class TripleDES {
         return plainText;
     }
 
-}
\ No newline at end of file
+}
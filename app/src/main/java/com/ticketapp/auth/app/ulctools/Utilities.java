@@ -23,7 +23,7 @@ public class Utilities {
      * @return boolean value of success
      */
     public boolean eraseMemory() {
-        Reader.erase(false);
+        ul.getSession().erase(false);
         return true;
     }
 
@@ -33,8 +33,9 @@ public class Utilities {
      * @return byte array where the data is stored
      */
     public byte[] readMemory() {
-        byte[] memory = new byte[192];
-        readPages(0, 44, memory, 0);
+        int pages = ul.getSession().getTagType().getPageCount();
+        byte[] memory = new byte[pages * 4];
+        readPages(0, pages, memory, 0);
         return memory;
     }
 
@@ -49,8 +50,13 @@ public class Utilities {
      * @return boolean value of success
      */
     public boolean readPages(int startPage, int numberOfPages, byte[] destination, int destinationStartByte) {
-        // We always read and write one 4-byte page at a time.
+        // Longer ranges are read with FAST_READ or 4-page READ commands at once,
+        // single pages with the aligned 4-page block, which is then cached.
         // The address is the number 0...39 of the 4-byte page.
+        if (numberOfPages > PageCache.BLOCK_PAGES) {
+            return ul.getSession().readPages(startPage, numberOfPages, destination,
+                    destinationStartByte, false) == numberOfPages;
+        }
         for (int i = 0; i < numberOfPages; i++) {
             boolean status = ul.readBinary(startPage + i, destination,
                     destinationStartByte + i * 4);
@@ -72,12 +78,29 @@ public class Utilities {
      * @return boolean value of success
      */
     public boolean writePages(byte[] srcBuffer, int srcPos, int startPage, int numberOfPages) {
+        return writePages(srcBuffer, srcPos, startPage, numberOfPages, false);
+    }
+
+    /**
+     * Write input byte array on card, optionally skipping pages that already hold the data.
+     * <p/>
+     * Skipped pages are counted, see {@link #getSkippedWrites()}.
+     *
+     * @param srcBuffer     byte array
+     * @param srcPos        starting point of data to write
+     * @param startPage     first page on card to write data
+     * @param numberOfPages how many pages to write
+     * @param skipUnchanged if true, compare with the current page data and skip identical pages
+     * @return boolean value of success
+     */
+    public boolean writePages(byte[] srcBuffer, int srcPos, int startPage, int numberOfPages,
+                              boolean skipUnchanged) {
         boolean status;
         // We always read and write one 4-byte page at a time.
         // The address is the number 0...39 of the 4-byte page.
         for (int i = 0; i < numberOfPages; i++) {
             status = ul.writeBinary(startPage + i, srcBuffer, srcPos + 4
-                    * i);
+                    * i, skipUnchanged);
             if (!status) {
                 return false;
             }
@@ -85,6 +108,27 @@ public class Utilities {
         return true;
     }
 
+    /**
+     * @return number of page writes skipped since the last reset
+     */
+    public int getSkippedWrites() {
+        return ul.getSkippedWrites();
+    }
+
+    public void resetSkippedWrites() {
+        ul.resetSkippedWrites();
+    }
+
+    /**
+     * Lock pages, with at most one write to each of the lock pages 2 and 40.
+     *
+     * @param pages pages to lock, see {@link CardSession#lockPages(int[])}
+     * @return boolean value of success
+     */
+    public boolean lockPages(int[] pages) {
+        return ul.getSession().lockPages(pages);
+    }
+
     /**
      * Authenticate card with given key in stored in byte array
      *
@@ -92,7 +136,10 @@ public class Utilities {
      * @return boolean value of success
      */
     public boolean authenticate(byte[] key) {
-        return Reader.authenticate(key, true);
+        // A session prepared when the card was discovered is already authenticated
+        if (ul.getSession().isAuthenticatedWith(key)) return true;
+        // The keys of the tickets are diversified per card, the exchange is not shown
+        return ul.getSession().authenticate(key, false);
     }
 
     /**
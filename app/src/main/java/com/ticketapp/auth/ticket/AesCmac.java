@@ -0,0 +1,101 @@
+package com.ticketapp.auth.ticket;
+
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * AES-CMAC (RFC 4493) on top of AES in ECB mode, as javax.crypto has no CMAC.
+ * <p/>
+ * Like {@link TicketMac}, an instance can be shared by several threads: every thread
+ * gets its own cipher and block buffer.
+ */
+public class AesCmac implements MacEngine {
+
+    private static final int BLOCK = 16;
+
+    private final SecretKeySpec key;
+    private final byte[] k1 = new byte[BLOCK];
+    private final byte[] k2 = new byte[BLOCK];
+
+    private final ThreadLocal<State> states = new ThreadLocal<State>() {
+        @Override
+        protected State initialValue() {
+            try {
+                return new State();
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    };
+
+    /** Cipher and working block of one thread */
+    private class State {
+        final Cipher cipher = Cipher.getInstance("AES/ECB/NoPadding");
+        final byte[] block = new byte[BLOCK];
+
+        State() throws GeneralSecurityException {
+            cipher.init(Cipher.ENCRYPT_MODE, key);
+        }
+    }
+
+    /**
+     * @param key AES key, 16 bytes
+     * @throws GeneralSecurityException if AES is not available or the key is invalid
+     */
+    public AesCmac(byte[] key) throws GeneralSecurityException {
+        this.key = new SecretKeySpec(key, "AES");
+
+        // Subkeys from the encrypted zero block
+        State state = states.get();
+        byte[] l = state.cipher.doFinal(new byte[BLOCK]);
+        shiftLeft(l, k1);
+        shiftLeft(k1, k2);
+    }
+
+    @Override
+    public int getMacLength() {
+        return BLOCK;
+    }
+
+    @Override
+    public void generateMac(byte[] data, int offset, int length, byte[] out, int outOffset)
+            throws GeneralSecurityException {
+        State state = states.get();
+        byte[] x = state.block;
+        Arrays.fill(x, (byte) 0);
+
+        int blocks = Math.max(1, (length + BLOCK - 1) / BLOCK);
+        boolean complete = length > 0 && length % BLOCK == 0;
+
+        for (int i = 0; i < blocks - 1; i++) {
+            for (int j = 0; j < BLOCK; j++) x[j] ^= data[offset + i * BLOCK + j];
+            state.cipher.doFinal(x, 0, BLOCK, x, 0);
+        }
+
+        // Last block: xor K1 if complete, else pad with 10..0 and xor K2
+        int last = (blocks - 1) * BLOCK;
+        int rest = length - last;
+        byte[] subkey = complete ? k1 : k2;
+        for (int j = 0; j < BLOCK; j++) {
+            byte m;
+            if (j < rest) m = data[offset + last + j];
+            else if (j == rest) m = (byte) 0x80;
+            else m = 0;
+            x[j] ^= (byte) (m ^ subkey[j]);
+        }
+        state.cipher.doFinal(x, 0, BLOCK, out, outOffset);
+    }
+
+    private static void shiftLeft(byte[] in, byte[] out) {
+        int carry = 0;
+        for (int i = BLOCK - 1; i >= 0; i--) {
+            int b = in[i] & 0xFF;
+            out[i] = (byte) ((b << 1) | carry);
+            carry = b >>> 7;
+        }
+        if ((in[0] & 0x80) != 0) out[BLOCK - 1] ^= (byte) 0x87;
+    }
+}
@@ -0,0 +1,120 @@
+package com.ticketapp.auth.ticket;
+
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Keys derived for recently seen cards, by UID and master key version: the diversified
+ * authentication key and the MAC engines keyed for the card.
+ * <p/>
+ * Cards come back, e.g. a commuter tapping on the way to work and back, so the derivation
+ * is skipped for the cards seen last. The cache is bounded and the least recently used
+ * card is dropped first. It is shared by tickets on several readers, so every access is
+ * synchronized. The keys depend on the master keys: clear the cache when they change,
+ * as {@link KeyRing} does.
+ */
+public class DerivedKeyCache {
+
+    /**
+     * Keys of one card. The MAC engines are created on first use, per algorithm.
+     */
+    public static class Keys {
+        private final byte[] authKey;
+        private final byte[] macKey;
+        private final MacEngine[] macs = new MacEngine[MacAlgorithm.values().length];
+
+        public Keys(byte[] authKey, byte[] macKey) {
+            this.authKey = authKey;
+            this.macKey = macKey;
+        }
+
+        /**
+         * @return the 16-byte authentication key, do not modify
+         */
+        public byte[] getAuthKey() {
+            return authKey;
+        }
+
+        /**
+         * @param algorithm MAC algorithm of the ticket
+         * @return engine computing the MAC of the ticket data with the key of the card
+         */
+        public synchronized MacEngine getMac(MacAlgorithm algorithm) throws GeneralSecurityException {
+            MacEngine mac = macs[algorithm.ordinal()];
+            if (mac == null) {
+                mac = algorithm.create(macKey);
+                macs[algorithm.ordinal()] = mac;
+            }
+            return mac;
+        }
+    }
+
+    private final Map<ByteBuffer, Keys> keys;
+    private int hits = 0;
+    private int misses = 0;
+
+    /**
+     * @param capacity number of cards kept
+     */
+    public DerivedKeyCache(final int capacity) {
+        keys = new LinkedHashMap<ByteBuffer, Keys>(capacity, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<ByteBuffer, Keys> eldest) {
+                return size() > capacity;
+            }
+        };
+    }
+
+    /**
+     * @param keyVersion version of the master keys, see {@link KeyRing}
+     * @param uid        UID of the card
+     * @return keys derived for the card earlier, null if not cached
+     */
+    public synchronized Keys get(int keyVersion, byte[] uid) {
+        Keys cached = keys.get(id(keyVersion, uid));
+        if (cached != null) hits++;
+        else misses++;
+        return cached;
+    }
+
+    /**
+     * @param keyVersion version of the master keys the keys are derived from
+     * @param uid        UID of the card
+     * @param keys       keys derived for the card
+     */
+    public synchronized void put(int keyVersion, byte[] uid, Keys keys) {
+        this.keys.put(id(keyVersion, uid), keys);
+    }
+
+    /**
+     * Forget every card, e.g. after a master key changed.
+     */
+    public synchronized void clear() {
+        keys.clear();
+    }
+
+    public synchronized int size() {
+        return keys.size();
+    }
+
+    public synchronized int getHits() {
+        return hits;
+    }
+
+    public synchronized int getMisses() {
+        return misses;
+    }
+
+    private static ByteBuffer id(int keyVersion, byte[] uid) {
+        ByteBuffer id = ByteBuffer.allocate(1 + uid.length);
+        id.put((byte) keyVersion).put(uid).flip();
+        return id;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "derived keys: " + keys.size() + " cards, " + hits + " hits, " + misses + " misses";
+    }
+}
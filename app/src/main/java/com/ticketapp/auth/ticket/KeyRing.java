@@ -0,0 +1,126 @@
+package com.ticketapp.auth.ticket;
+
+import java.security.GeneralSecurityException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Versioned master keys. The card keys are derived from the master keys of one version,
+ * and the version is stored on the card, so the reader finds the keys of a card without
+ * trying the versions one after the other.
+ * <p/>
+ * Rotating the master keys means adding a new version and making it the current one:
+ * new cards get keys of the current version, cards issued earlier keep working as long
+ * as their version is in the ring. The derived keys cached for the cards are dropped
+ * whenever the ring changes.
+ */
+public class KeyRing {
+
+    /** Highest version that fits the byte on the card */
+    public static final int MAX_VERSION = 0xFF;
+
+    /**
+     * Master keys of one version.
+     */
+    public static class MasterKeys {
+        private final int version;
+        private final byte[] derivationKey;
+        private final byte[] authKey;
+        private final byte[] macKey;
+        private TicketMac derivation;
+
+        MasterKeys(int version, byte[] derivationKey, byte[] authKey, byte[] macKey) {
+            this.version = version;
+            this.derivationKey = derivationKey.clone();
+            this.authKey = authKey.clone();
+            this.macKey = macKey.clone();
+        }
+
+        public int getVersion() {
+            return version;
+        }
+
+        /**
+         * @return master of the authentication keys, do not modify
+         */
+        byte[] getAuthKey() {
+            return authKey;
+        }
+
+        /**
+         * @return master of the MAC keys, do not modify
+         */
+        byte[] getMacKey() {
+            return macKey;
+        }
+
+        /**
+         * @return HMAC keyed with the derivation key, hashing master key and UID
+         */
+        synchronized TicketMac getDerivation() throws GeneralSecurityException {
+            if (derivation == null) derivation = new TicketMac(derivationKey);
+            return derivation;
+        }
+    }
+
+    private final Map<Integer, MasterKeys> versions = new HashMap<Integer, MasterKeys>();
+    private final DerivedKeyCache cache;
+    private int current = -1;
+
+    /**
+     * @param cache keys derived from this ring, cleared when the ring changes
+     */
+    public KeyRing(DerivedKeyCache cache) {
+        this.cache = cache;
+    }
+
+    /**
+     * Add or replace the master keys of a version.
+     *
+     * @param version       version stored on the cards, 0 - MAX_VERSION
+     * @param derivationKey key of the HMAC deriving the card keys
+     * @param authKey       master of the authentication keys, 16 bytes
+     * @param macKey        master of the MAC keys, 16 bytes
+     */
+    public synchronized void add(int version, byte[] derivationKey, byte[] authKey, byte[] macKey) {
+        if (version < 0 || version > MAX_VERSION || authKey.length != macKey.length) {
+            throw new IllegalArgumentException("Invalid master keys of version " + version);
+        }
+        versions.put(version, new MasterKeys(version, derivationKey, authKey, macKey));
+        cache.clear();
+    }
+
+    /**
+     * Remove a version, e.g. once no card with its keys is valid anymore.
+     *
+     * @param version version to remove, not the current one
+     */
+    public synchronized void remove(int version) {
+        if (version == current) throw new IllegalArgumentException("Current key version " + version);
+        versions.remove(version);
+        cache.clear();
+    }
+
+    /**
+     * @param version version of the keys of the cards issued from now on, added before
+     */
+    public synchronized void setCurrent(int version) {
+        if (!versions.containsKey(version)) throw new IllegalArgumentException("Unknown key version " + version);
+        current = version;
+    }
+
+    /**
+     * @param version version stored on the card
+     * @return the master keys of the version, null if not in the ring
+     */
+    public synchronized MasterKeys get(int version) {
+        return versions.get(version);
+    }
+
+    /**
+     * @return master keys of the cards issued from now on
+     */
+    public synchronized MasterKeys getCurrent() {
+        return versions.get(current);
+    }
+}
@@ -0,0 +1,59 @@
+package com.ticketapp.auth.ticket;
+
+import java.security.GeneralSecurityException;
+
+/**
+ * MAC algorithms of the ticket data. The version of the algorithm is stored on the card
+ * with the ticket, so cards issued with an older algorithm can still be validated.
+ * Cards issued before the version was stored read as version 0, HMAC-SHA1.
+ */
+public enum MacAlgorithm {
+    HMAC_SHA1(0) {
+        @Override
+        public MacEngine create(byte[] key) throws GeneralSecurityException {
+            return new TicketMac(key);
+        }
+    },
+    AES_CMAC(1) {
+        @Override
+        public MacEngine create(byte[] key) throws GeneralSecurityException {
+            return new AesCmac(key);
+        }
+    },
+    HMAC_SHA256(2) {
+        @Override
+        public MacEngine create(byte[] key) throws GeneralSecurityException {
+            return new TicketMac("HmacSHA256", key);
+        }
+    };
+
+    private final int version;
+
+    MacAlgorithm(int version) {
+        this.version = version;
+    }
+
+    /**
+     * @return version stored on the card, 0 - 15
+     */
+    public int getVersion() {
+        return version;
+    }
+
+    /**
+     * @param key MAC key of the card, 16 bytes
+     * @return engine computing the MAC with the key
+     */
+    public abstract MacEngine create(byte[] key) throws GeneralSecurityException;
+
+    /**
+     * @param version version stored on the card
+     * @return the algorithm, null if the version is unknown
+     */
+    public static MacAlgorithm forVersion(int version) {
+        for (MacAlgorithm algorithm : values()) {
+            if (algorithm.version == version) return algorithm;
+        }
+        return null;
+    }
+}
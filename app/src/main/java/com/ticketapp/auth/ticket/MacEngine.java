@@ -0,0 +1,27 @@
+package com.ticketapp.auth.ticket;
+
+import java.security.GeneralSecurityException;
+
+/**
+ * A MAC with a fixed key, usable from several threads at the same time.
+ */
+public interface MacEngine {
+
+    /**
+     * @return length of the MAC in bytes, before truncation
+     */
+    int getMacLength();
+
+    /**
+     * Compute the MAC without allocating.
+     *
+     * @param data      buffer with the data to authenticate
+     * @param offset    start of the data
+     * @param length    length of the data
+     * @param out       buffer the MAC is written to, needs getMacLength() bytes from outOffset
+     * @param outOffset where the MAC is written
+     * @throws GeneralSecurityException if out is too short
+     */
+    void generateMac(byte[] data, int offset, int length, byte[] out, int outOffset)
+            throws GeneralSecurityException;
+}
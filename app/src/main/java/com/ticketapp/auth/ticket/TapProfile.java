@@ -0,0 +1,151 @@
+package com.ticketapp.auth.ticket;
+
+import com.ticketapp.auth.app.ulctools.CardSession;
+import com.ticketapp.auth.app.ulctools.FaultInjectingTransport;
+import com.ticketapp.auth.app.ulctools.Reader;
+import com.ticketapp.auth.app.ulctools.SimulatedUltralightC;
+import com.ticketapp.auth.app.ulctools.TagCapabilities;
+import com.ticketapp.auth.app.ulctools.TapStatistics;
+
+import java.security.GeneralSecurityException;
+import java.util.Random;
+
+/**
+ * Measures tap time and failure rate of {@link Ticket#issue(int, int)} and
+ * {@link Ticket#use()} over a link with faults, see {@link FaultInjectingTransport}.
+ * <p/>
+ * The card is used until it has no rides left and then issued again. A failed tap is
+ * counted and tapped again, like a passenger would. Optionally the card is pulled out of
+ * the field in the middle of some taps, after a random number of commands.
+ * <p/>
+ * The keys derived for the card are kept in a cache of the profile, so the shared cache
+ * and its statistics only hold real cards.
+ */
+public class TapProfile {
+
+    // Simulated card of the bad link profile, no manufacturer code 0x00 on real cards
+    static final byte[] BAD_LINK_UID = {0x00, 0x50, 0x52, 0x4F, 0x46, 0x49, 0x4C};
+
+    // Re-issue after this many failed uses in a row, the card may have been left unusable
+    private static final int MAX_FAILED_USES = 3;
+
+    private final FaultInjectingTransport link;
+    private final Random random;
+    private final Ticket ticket = new Ticket(new DerivedKeyCache(1));
+    private final TapStatistics issues = new TapStatistics();
+    private final TapStatistics uses = new TapStatistics();
+    private double tearRate = 0;
+    private int tearCommands = 20;
+    private int rides = 0;
+    private int failedUses = 0;
+
+    /**
+     * @param link   link to the card, with the faults to measure
+     * @param random source of the tears, seed it for repeatable runs
+     */
+    public TapProfile(FaultInjectingTransport link, Random random) throws GeneralSecurityException {
+        this.link = link;
+        this.random = random;
+    }
+
+    /**
+     * Profile of a link near the edge of the field, see
+     * {@link FaultInjectingTransport#badLink(com.ticketapp.auth.app.ulctools.CardTransport, long)},
+     * with one tap in 20 torn, on a simulated card.
+     *
+     * @param taps use taps to measure
+     * @param seed seed of the faults
+     * @return one line each for the issue and the use taps
+     */
+    public static String badLink(int taps, long seed) throws GeneralSecurityException {
+        SimulatedUltralightC card = new SimulatedUltralightC(BAD_LINK_UID, new Random(seed));
+        TapProfile profile = new TapProfile(FaultInjectingTransport.badLink(card, seed), new Random(seed));
+        profile.setTearRate(0.05, 20);
+        // The commands to the simulated card are not shown on the console
+        Reader.setHistoryMuted(true);
+        try {
+            profile.run(taps);
+        } finally {
+            TagCapabilities.forget(BAD_LINK_UID);
+            Reader.setHistoryMuted(false);
+        }
+        return "bad link, issue: " + profile.getIssueStatistics()
+                + "\nbad link, use: " + profile.getUseStatistics() + "\n";
+    }
+
+    /**
+     * @param tearRate share of the taps (0 - 1) where the card is pulled out of the field
+     * @param commands the card is pulled after 0 to this many commands
+     */
+    public void setTearRate(double tearRate, int commands) {
+        this.tearRate = tearRate;
+        this.tearCommands = commands;
+    }
+
+    /**
+     * Tap until the given number of use taps is done, issuing the card when needed.
+     *
+     * @param taps use taps to run, failed ones included
+     */
+    public void run(int taps) throws GeneralSecurityException {
+        while (uses.getCount() < taps) {
+            if (rides <= 0 || failedUses >= MAX_FAILED_USES) {
+                issueTap();
+            } else {
+                useTap();
+            }
+        }
+    }
+
+    public TapStatistics getIssueStatistics() {
+        return issues;
+    }
+
+    public TapStatistics getUseStatistics() {
+        return uses;
+    }
+
+    private void issueTap() throws GeneralSecurityException {
+        long start = System.nanoTime();
+        boolean ok = false;
+        CardSession session = openSession();
+        if (session != null) {
+            try {
+                ok = ticket.issue(30, 10);
+                if (ok) rides = ticket.getRemainingUses();
+            } finally {
+                session.close();
+            }
+        }
+        issues.record(System.nanoTime() - start, ok);
+        if (ok) failedUses = 0;
+        link.restore();
+    }
+
+    private void useTap() throws GeneralSecurityException {
+        long start = System.nanoTime();
+        boolean ok = false;
+        CardSession session = openSession();
+        if (session != null) {
+            try {
+                ok = ticket.use();
+                if (ok) rides = ticket.getRemainingUses();
+            } finally {
+                session.close();
+            }
+        }
+        uses.record(System.nanoTime() - start, ok);
+        failedUses = ok ? 0 : failedUses + 1;
+        link.restore();
+    }
+
+    private CardSession openSession() {
+        if (tearRate > 0 && random.nextDouble() < tearRate) {
+            link.tearAfter(random.nextInt(tearCommands + 1));
+        }
+        CardSession session = new CardSession(link);
+        if (!session.open()) return null;
+        ticket.setSession(session);
+        return session;
+    }
+}
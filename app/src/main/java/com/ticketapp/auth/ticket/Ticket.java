@@ -1,8 +1,9 @@
 package com.ticketapp.auth.ticket;
 
-import com.ticketapp.auth.R;
-import com.ticketapp.auth.app.main.TicketActivity;
+import com.ticketapp.auth.app.ulctools.CardSession;
 import com.ticketapp.auth.app.ulctools.Commands;
+import com.ticketapp.auth.app.ulctools.DefaultKeys;
+import com.ticketapp.auth.app.ulctools.TransceiveTrace;
 import com.ticketapp.auth.app.ulctools.Utilities;
 
 import java.nio.ByteBuffer;
@@ -25,27 +26,40 @@ import java.security.GeneralSecurityException;
  */
 public class Ticket {
 
-    /** Default keys are stored in res/values/secrets.xml **/
-    private static final byte[] defaultAuthenticationKey = TicketActivity.outer.getString(R.string.default_auth_key).getBytes();
-    private static final byte[] defaultHMACKey = TicketActivity.outer.getString(R.string.default_hmac_key).getBytes();
-
     private static final byte[] authenticationKey = "NS-KEYPROJ#1->21".getBytes(); // 16-byte key
     private static final byte[] hmacKey = "NS-MACPROJ#1->21".getBytes(); // 16-byte key
     private static final byte[] hashKey = "NS-SHAPROJ#1->21".getBytes(); // 16-byte key
 
-    public static byte[] data = new byte[192];
+    // Keys derived from the master keys above, shared by every ticket
+    private static final DerivedKeyCache keyCache = new DerivedKeyCache(64);
+    private static final KeyRing keyRing = new KeyRing(keyCache);
+
+    static {
+        // Keys of the cards issued before the key version was stored on the card
+        keyRing.add(0, hashKey, authenticationKey, hmacKey);
+        keyRing.setCurrent(0);
+    }
 
-    private static TicketMac macAlgorithm; // For computing HMAC over ticket data, as needed
-    private static TicketMac hashAlgorithm; // For computing hash for auth and HMAC keys
-    private static Utilities utils;
-    private static Commands ul;
+    // Per ticket, so tickets on different readers can run at the same time
+    private final DerivedKeyCache cache;
+    private final byte[] macBuffer = new byte[32]; // Fits the MAC of every MacAlgorithm
+    private MacAlgorithm issueMacAlgorithm = MacAlgorithm.HMAC_SHA1;
+    private Utilities utils;
+    private Commands ul;
 
     private byte[] uid = null;
+    // Keys derived for the last card, kept between taps of the same card
+    private int keyVersion = -1; // Version of the master keys of the card, see KeyRing
+    private byte[] derivedUid = null;
+    private int derivedVersion = -1;
+    private byte[] derivedAuthKey = null;
+    private DerivedKeyCache.Keys derivedKeys = null; // Incl. the MACs over ticket data, keyed for the card
     private byte[] userData = null;
     private byte[] MAC = null;
     private int expiryTime;
     private short maxRides;
     private short counter = -1;
+    private long fixedTime = 0;
 
     enum Type {
         ACTIVE,
@@ -57,6 +71,8 @@ public class Ticket {
 
     private static final short USER_DATA_START_PAGE = 39;
     private static final short MAX_RIDE_PAGE = USER_DATA_START_PAGE;
+    private static final int MAC_VERSION_BYTE = 2; // In MAX_RIDE_PAGE, low nibble, covered by the MAC
+    private static final int KEY_VERSION_BYTE = 3; // In MAX_RIDE_PAGE, readable without authentication
     private static final short COUNTER_INIT_STATE_PAGE = MAX_RIDE_PAGE - 1;
     private static final short EXPIRY_TIME_PAGE = MAX_RIDE_PAGE - 1;
     private static final short MAC_UNACTIVE_PAGE = EXPIRY_TIME_PAGE - 1;
@@ -66,27 +82,148 @@ public class Ticket {
     private static final short COUNTER_PAGE = 41;
     private static final short KEY_PAGE = 44;
 
-    private static String infoToShow = "-"; // Use this to show messages
+    private String infoToShow = "-"; // Use this to show messages
 
     /** Create a new ticket */
     public Ticket() throws GeneralSecurityException {
-        // Set key for all key generations
-        hashAlgorithm = new TicketMac();
-        hashAlgorithm.setKey(hashKey);
+        this(keyCache);
+    }
 
-        // Set HMAC key for the ticket
-        macAlgorithm = new TicketMac();
+    /**
+     * Create a ticket that keeps the keys it derives out of the shared cache, e.g. for
+     * taps on a simulated card. The cache is not cleared when the key ring changes.
+     *
+     * @param cache cache of the keys derived by this ticket
+     */
+    Ticket(DerivedKeyCache cache) throws GeneralSecurityException {
+        this.cache = cache;
+    }
 
-        ul = new Commands();
+    /** Set the session with the card the next issue() or use() runs against */
+    public void setSession(CardSession session) {
+        ul = new Commands(session);
         utils = new Utilities(ul);
     }
 
-    private void setMacKey() throws GeneralSecurityException {
-        if (macAlgorithm.isKeySet()) return;
+    /**
+     * Set the MAC algorithm of the tickets issued from now on. Tickets issued with
+     * another algorithm are still validated with theirs.
+     *
+     * @param algorithm MAC algorithm of new tickets
+     */
+    public void setMacAlgorithm(MacAlgorithm algorithm) {
+        issueMacAlgorithm = algorithm;
+    }
 
-        // MAC key calculated based on UID
-        byte[] macKey = calculateHashedKey(hmacKey);
-        macAlgorithm.setKey(macKey);
+    /**
+     * Fix the time the ticket is checked and activated at, for replaying recorded taps.
+     *
+     * @param millis time in milliseconds, 0 for the current time
+     */
+    public void setTime(long millis) {
+        fixedTime = millis;
+    }
+
+    private long currentTimeMillis() {
+        return fixedTime != 0 ? fixedTime : new Date().getTime();
+    }
+
+    /**
+     * Get a session ready right after the card is discovered: derive the keys from the
+     * UID of anticollision and authenticate with the derived key. The following issue()
+     * or use() with the same session does not authenticate again.
+     *
+     * @param session session with the discovered card
+     * @return true if the card accepted the derived key
+     */
+    public boolean prepare(CardSession session) throws GeneralSecurityException {
+        setSession(session);
+        session.markKind(TransceiveTrace.KIND_PREPARE);
+        resetInstance();
+        if (!session.getCapabilities().supportsAuthentication() || isBlankCard() || !deriveKeys()) return false;
+        return utils.authenticate(derivedAuthKey);
+    }
+
+    /**
+     * @return keys derived for recently seen cards
+     */
+    public static DerivedKeyCache getKeyCache() {
+        return keyCache;
+    }
+
+    /**
+     * @return master keys by version, add a version and make it current to rotate the keys
+     */
+    public static KeyRing getKeyRing() {
+        return keyRing;
+    }
+
+    /**
+     * Derive the authentication and MAC keys from the UID and the master keys of the
+     * version on the card, or take them from the cache if the card was seen recently.
+     *
+     * @return false if the UID is not available or the key version is unknown
+     */
+    private boolean deriveKeys() throws GeneralSecurityException {
+        if (this.uid == null) {
+            this.uid = readUid();
+            if (this.uid == null) {
+                Utilities.log("Failed to read UID in deriveKeys()", true);
+                return false;
+            }
+        }
+        if (keyVersion < 0) {
+            keyVersion = readKeyVersion();
+            if (keyVersion < 0) return false;
+        }
+        if (Arrays.equals(uid, derivedUid) && keyVersion == derivedVersion) return true;
+
+        DerivedKeyCache.Keys keys = cache.get(keyVersion, uid);
+        if (keys == null) {
+            KeyRing.MasterKeys master = keyRing.get(keyVersion);
+            if (master == null) {
+                Utilities.log("Unknown key version " + keyVersion + " in deriveKeys()", true);
+                return false;
+            }
+            keys = calculateDerivedKeys(uid, master);
+            cache.put(keyVersion, uid, keys);
+        }
+        derivedAuthKey = keys.getAuthKey();
+        derivedKeys = keys;
+        derivedUid = uid.clone();
+        derivedVersion = keyVersion;
+        return true;
+    }
+
+    /**
+     * A blank or erased card has no max rides and no key version, no authentication is
+     * attempted. The page is read once for this and for the key version.
+     */
+    private boolean isBlankCard() {
+        byte[] message = new byte[4];
+        if (!utils.readPages(MAX_RIDE_PAGE, 1, message, 0)) return false;
+        return message[0] == 0 && message[1] == 0 && message[2] == 0 && message[3] == 0;
+    }
+
+    /**
+     * Read the version of the master keys the card keys are derived from. The page is
+     * readable without authentication.
+     *
+     * @return the version, -1 if the page cannot be read
+     */
+    private int readKeyVersion() {
+        byte[] message = new byte[4];
+        boolean res = utils.readPages(MAX_RIDE_PAGE, 1, message, 0);
+        if (!res) {
+            Utilities.log("Failed to read key version in readKeyVersion()", true);
+            return -1;
+        }
+        return message[KEY_VERSION_BYTE] & 0xFF;
+    }
+
+    private void setMacKey() throws GeneralSecurityException {
+        // MAC key calculated based on UID, once per card
+        if (!deriveKeys()) throw new GeneralSecurityException("UID not available for the MAC key");
     }
 
     /** After validation, get ticket status: was it valid or not? If valid return usages */
@@ -110,7 +247,7 @@ public class Ticket {
         // Only need to check up until this point for unactive cards
         if (type == Type.UNACTIVE) return uses;
 
-        if (getExpiryTime() >= new Date().getTime() / (1000 * 60)) {
+        if (getExpiryTime() >= currentTimeMillis() / (1000 * 60)) {
             return uses;
         }
         infoToShow = "Expiry time exceeded. ";
@@ -119,7 +256,7 @@ public class Ticket {
 
     private boolean isMacValid(byte[] userData) throws GeneralSecurityException {
         byte[] subMac = calculateMac(userData);
-        return Arrays.equals(subMac, this.MAC);
+        return subMac != null && Arrays.equals(subMac, this.MAC);
     }
 
     /** After validation, get the number of remaining uses */
@@ -169,39 +306,48 @@ public class Ticket {
     }
 
     /** After validation/issuing, get information */
-    public static String getInfoToShow() {
+    public String getInfoToShow() {
         return infoToShow;
     }
 
     private byte[] calculateMac(byte[] userData)  throws GeneralSecurityException {
         this.setMacKey();
 
-        byte[] mac = macAlgorithm.generateMac(userData);
+        // The algorithm is stored with the data, in the last page MAX_RIDE_PAGE
+        int version = userData[userData.length - 4 + MAC_VERSION_BYTE] & 0x0F;
+        MacAlgorithm algorithm = MacAlgorithm.forVersion(version);
+        if (algorithm == null) {
+            Utilities.log("Unknown MAC version " + version + " in calculateMac()", true);
+            return null;
+        }
+        derivedKeys.getMac(algorithm).generateMac(userData, 0, userData.length, macBuffer, 0);
 
         // Format MAC to write
         byte[] subMac = new byte[4];
-        System.arraycopy(mac, 0, subMac, 0, subMac.length);
+        System.arraycopy(macBuffer, 0, subMac, 0, subMac.length);
         return subMac;
     }
 
-    private byte[] calculateHashedKey(byte[] key) {
-        if(this.uid == null) {
-            this.uid = readUid();
-            if (this.uid == null) {
-                Utilities.log("Failed to read UID in calculateHashedKey()", true);
-                return null;
-            }
-        }
-
-        byte[] hashData = new byte[key.length + uid.length];
-        System.arraycopy(key, 0, hashData, 0, key.length);
-        System.arraycopy(uid, 0, hashData, key.length, uid.length);
-        byte[] hash = hashAlgorithm.generateMac(hashData);
-
-        // Format Hash to write. Key is 16 bytes
-        byte[] subHash = new byte[16];
-        System.arraycopy(hash, 0, subHash, 0, subHash.length);
-        return subHash;
+    /** Both keys are a hash of their master key and the UID, computed in one pass over one buffer */
+    private DerivedKeyCache.Keys calculateDerivedKeys(byte[] uid, KeyRing.MasterKeys master)
+            throws GeneralSecurityException {
+        byte[] authMaster = master.getAuthKey();
+        byte[] macMaster = master.getMacKey();
+        TicketMac hashAlgorithm = master.getDerivation();
+        byte[] hashData = new byte[authMaster.length + uid.length];
+        byte[] hash = new byte[TicketMac.MAC_LENGTH];
+        System.arraycopy(uid, 0, hashData, authMaster.length, uid.length);
+
+        // Keys are the first 16 bytes of the hash
+        System.arraycopy(authMaster, 0, hashData, 0, authMaster.length);
+        hashAlgorithm.generateMac(hashData, 0, hashData.length, hash, 0);
+        byte[] authKey = Arrays.copyOf(hash, 16);
+
+        System.arraycopy(macMaster, 0, hashData, 0, macMaster.length);
+        hashAlgorithm.generateMac(hashData, 0, hashData.length, hash, 0);
+        byte[] macKey = Arrays.copyOf(hash, 16);
+
+        return new DerivedKeyCache.Keys(authKey, macKey);
     }
 
 
@@ -210,7 +356,7 @@ public class Ticket {
 
         // Define pages to be protected
         byte[] auth0 = new byte[]{(byte) startPage, (byte) 0x00, (byte) 0x00, (byte) 0x00}; // only first bit matters, others added as padding to use writePage()
-        res = utils.writePages(auth0,0, 42, 1);
+        res = utils.writePages(auth0,0, 42, 1, true);
         if (!res) {
             Utilities.log("Enabling Auth0 r/w protection in enablePageRestriction()", true);
             return false;
@@ -218,7 +364,7 @@ public class Ticket {
 
         // Enable protection of pages defined in Auth0 (write protected only)
         byte[] auth1 = new byte[]{(byte) 0x01, (byte) 0x00, (byte) 0x00, (byte) 0x00}; // only first bit matters, others added as padding to use writePage()
-        res = utils.writePages(auth1,0, 43, 1);
+        res = utils.writePages(auth1,0, 43, 1, true);
         if (!res) {
             Utilities.log("Enabling Auth1 write protection in enablePageRestriction()", true);
             return false;
@@ -246,8 +392,10 @@ public class Ticket {
         byte[] rideCounterBytesShort = Utilities.shortToByteArray(maxRideCounter);
         byte[] rideCounterBytes = {0x0, 0x0, 0x0, 0x0};
         System.arraycopy(rideCounterBytesShort, 0, rideCounterBytes, 0, rideCounterBytesShort.length);
+        rideCounterBytes[MAC_VERSION_BYTE] = (byte) issueMacAlgorithm.getVersion();
+        rideCounterBytes[KEY_VERSION_BYTE] = (byte) keyVersion;
 
-        boolean res = utils.writePages(rideCounterBytes, 0, MAX_RIDE_PAGE, 1);
+        boolean res = utils.writePages(rideCounterBytes, 0, MAX_RIDE_PAGE, 1, true);
         if (!res) {
             Utilities.log("Failed to write max rides number in setMaxRides()", true);
             return false;
@@ -261,7 +409,7 @@ public class Ticket {
 
         infoToShow = "Setting up expiry time";
 
-        int expiryTime = (int) (new java.util.Date().getTime() / (1000 * 60)) + period; // in minutes
+        int expiryTime = (int) (currentTimeMillis() / (1000 * 60)) + period; // in minutes
 
          // Format message to be written in page
         byte[] expiryTimeBytes = ByteBuffer.allocate(4).putInt(expiryTime).array();
@@ -286,6 +434,8 @@ public class Ticket {
             Utilities.log("Failed to write key in writeKey()", true);
             return false;
         }
+        // The card takes the new key at the next authentication, also when recovering
+        ul.getSession().keyWritten(key);
 
         return true;
     }
@@ -301,10 +451,14 @@ public class Ticket {
         }
 
         byte[] subMac = calculateMac(userData);
+        if (subMac == null) {
+            Utilities.log("Failed to calculate MAC in writeMac()", true);
+            return false;
+        }
 
         // Write MAC
         short pageAddr = (type == Type.UNACTIVE ? MAC_UNACTIVE_PAGE : MAC_ACTIVE_PAGE);
-        boolean res = utils.writePages(subMac, 0, pageAddr, 1);
+        boolean res = utils.writePages(subMac, 0, pageAddr, 1, true);
         if (!res) {
             Utilities.log("Failed to write MAC in writeMac()", true);
             return false;
@@ -319,7 +473,11 @@ public class Ticket {
 
         infoToShow = "Reading UID";
 
-        byte[] uid = new byte[8];
+        // Known from anticollision, no need to read the pages
+        byte[] uid = ul.getSession().getUidPages();
+        if (uid != null) return uid;
+
+        uid = new byte[8];
         res = utils.readPages(0, 2, uid , 0);
         if (!res) {
             Utilities.log("Failed to read uid in readUid()", true);
@@ -427,7 +585,7 @@ public class Ticket {
         }
 
         // Write counter init state
-        res = utils.writePages(message, 0, COUNTER_INIT_STATE_PAGE, 1);
+        res = utils.writePages(message, 0, COUNTER_INIT_STATE_PAGE, 1, true);
         if (!res) {
             Utilities.log("Failed to write counter state in writeCounterState()", true);
             return false;
@@ -469,29 +627,52 @@ public class Ticket {
         return true;
     }
 
+    /**
+     * Tickets need the authentication and the counter of the Ultralight C
+     */
+    private boolean isSupportedCard() {
+        if (ul.getSession().getCapabilities().supportsAuthentication()) return true;
+        Utilities.log("Unsupported card type: " + ul.getSession().getTagType().getName(), true);
+        infoToShow = "Unsupported card type";
+        return false;
+    }
+
     /**
      * Issue new tickets
      */
     public boolean issue(int daysValid, int uses) throws GeneralSecurityException {
         infoToShow = "Starting issueing";
+        ul.getSession().markKind(TransceiveTrace.KIND_ISSUE);
         resetInstance();
+        if (!isSupportedCard()) return false;
 
         boolean res;
         Type cardType;
         boolean addPreviousRides = false;
 
-        // Authenticate for non default should be more used so comes first
-        byte[] calculatedKey = calculateHashedKey(authenticationKey);
+        // Blank cards get keys of the current version. Issued cards are authenticated and
+        // validated with the keys of the version they have, and then moved to the current one.
+        boolean blank = isBlankCard();
+        int currentVersion = keyRing.getCurrent().getVersion();
+        keyVersion = blank ? currentVersion : readKeyVersion();
+        if (keyVersion < 0) {
+            infoToShow = "Reading key version failed";
+            return false;
+        }
+        int cardVersion = keyVersion;
+        boolean currentKeyWritten = false;
+        byte[] calculatedKey = deriveKeys() ? derivedAuthKey : null;
         if (calculatedKey == null) {
             Utilities.log("Calculating auth key failed in issue()", true);
             infoToShow = "Calculating auth key failed";
             return false;
         }
 
-        res = utils.authenticate(calculatedKey);
-        if (!res) {
-            // Try authenticate with default key for blank cards
-            boolean resDefault = utils.authenticate(defaultAuthenticationKey);
+        if (blank) {
+            // Blank cards have the default key. The derived key is only tried if an earlier
+            // issue stopped after writing it, before enabling the protection.
+            boolean resDefault = utils.authenticate(DefaultKeys.getAuthKey().getBytes())
+                    || utils.authenticate(calculatedKey);
             if (!resDefault) {
                 Utilities.log("Authentication failed in issue()", true);
                 infoToShow = "Authentication failed";
@@ -518,6 +699,20 @@ public class Ticket {
             addPreviousRides = false;
         } else {
             // In case of a card already in use
+            res = utils.authenticate(calculatedKey);
+            if (!res && cardVersion != currentVersion) {
+                // An earlier issue may have stopped after writing the key of the current
+                // version, before writing the version. The data is still of the card version.
+                keyVersion = currentVersion;
+                currentKeyWritten = deriveKeys() && utils.authenticate(derivedAuthKey);
+                keyVersion = cardVersion;
+                res = currentKeyWritten && deriveKeys();
+            }
+            if (!res) {
+                Utilities.log("Authentication failed in issue()", true);
+                infoToShow = "Authentication failed";
+                return false;
+            }
 
             // Read whats need for later validation
             this.uid = readUid();
@@ -544,6 +739,18 @@ public class Ticket {
                     addPreviousRides = false;
                 }
             }
+
+            if (cardVersion != currentVersion) {
+                // Rotate the keys: the key and the MAC of the current version are written,
+                // and setMaxRides() stores the version
+                keyVersion = currentVersion;
+                calculatedKey = deriveKeys() ? derivedAuthKey : null;
+                if (calculatedKey == null || (!currentKeyWritten && !writeKey(calculatedKey))) {
+                    Utilities.log("Writing key of version " + currentVersion + " failed in issue()", true);
+                    infoToShow = "Writing new key failed";
+                    return false;
+                }
+            }
         }
 
         // Read regardless if its a active card or unactive (or new)
@@ -581,6 +788,7 @@ public class Ticket {
 
         int amntRides = getRemainingUses();
 
+        Utilities.log("Skipped " + utils.getSkippedWrites() + " unchanged page writes in issue()", false);
         infoToShow = "Succesfully issued\nNew amount of rides available: " + amntRides;
         return true;
     }
@@ -590,13 +798,15 @@ public class Ticket {
      */
     public boolean use() throws GeneralSecurityException {
         infoToShow = "Starting validation";
+        ul.getSession().markKind(TransceiveTrace.KIND_USE);
         resetInstance();
+        if (!isSupportedCard()) return false;
 
         boolean res;
         Type type = Type.ACTIVE;
 
         // Authenticate
-        byte[] calculatedKey = calculateHashedKey(authenticationKey);
+        byte[] calculatedKey = deriveKeys() ? derivedAuthKey : null;
         if (calculatedKey == null) {
             Utilities.log("Calculating auth key failed in use()", true);
             infoToShow = "Calculating auth key failed";
@@ -657,14 +867,25 @@ public class Ticket {
         }
     }
 
+    /**
+     * Forget the keys derived for the last card, so the next tap derives them again unless
+     * they are in the shared cache. For measuring the key derivation.
+     */
+    void forgetDerivedKeys() {
+        derivedUid = null;
+        derivedVersion = -1;
+        derivedAuthKey = null;
+        derivedKeys = null;
+    }
+
     private void resetInstance() {
         this.counter = -1;
         this.expiryTime = -1;
         this.maxRides = -1;
         this.uid = null;
+        this.keyVersion = -1;
         this.userData = null;
         this.MAC = null;
-        macAlgorithm = new TicketMac();
-//        macAlgorithm.unsetKey();
+        utils.resetSkippedWrites();
     }
 }
\ No newline at end of file
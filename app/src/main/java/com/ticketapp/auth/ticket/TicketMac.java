@@ -5,38 +5,84 @@ import java.security.GeneralSecurityException;
 import javax.crypto.Mac;
 import javax.crypto.spec.SecretKeySpec;
 
-public class TicketMac {
-    private static SecretKeySpec hmacKey;
-    private Mac mac;
-    private boolean isKeySet = false;
-
-    public TicketMac() {
-        isKeySet = false;
-        hmacKey = null;
-    }
+/**
+ * HMAC with a fixed key, HMAC-SHA1 unless another algorithm is given.
+ * <p/>
+ * An instance can be shared by several threads: every thread gets its own Mac, cloned
+ * from one initialized in the constructor, so the provider is looked up and the key set
+ * up only once per key.
+ */
+public class TicketMac implements MacEngine {
+
+    /** Length of an HMAC-SHA1 */
+    public static final int MAC_LENGTH = 20;
 
-    public void setKey(byte[] key) throws GeneralSecurityException {
-        hmacKey = new SecretKeySpec(key, "HmacSHA1");
-        mac = Mac.getInstance("HmacSHA1");
-        mac.init(hmacKey);
+    private final SecretKeySpec key;
+    private final Mac prototype;
+    private final ThreadLocal<Mac> macs = new ThreadLocal<Mac>() {
+        @Override
+        protected Mac initialValue() {
+            return copyPrototype();
+        }
+    };
 
-        isKeySet = true;
+    /**
+     * @param key HMAC key
+     * @throws GeneralSecurityException if HmacSHA1 is not available or the key is invalid
+     */
+    public TicketMac(byte[] key) throws GeneralSecurityException {
+        this("HmacSHA1", key);
     }
 
-    public void unsetKey() {
-        hmacKey = null;
-        mac = null;
-        this.isKeySet = false;
+    /**
+     * @param algorithm HMAC algorithm, e.g. HmacSHA256
+     * @param key       HMAC key
+     * @throws GeneralSecurityException if the algorithm is not available or the key is invalid
+     */
+    public TicketMac(String algorithm, byte[] key) throws GeneralSecurityException {
+        this.key = new SecretKeySpec(key, algorithm);
+        prototype = Mac.getInstance(algorithm);
+        prototype.init(this.key);
     }
 
-    public boolean isKeySet() {
-        return this.isKeySet;
+    @Override
+    public int getMacLength() {
+        return prototype.getMacLength();
     }
 
+    /**
+     * @param data data to authenticate
+     * @return the MAC
+     */
     public byte[] generateMac(byte[] data) {
-        if(!isKeySet)
-            return null;
+        Mac mac = macs.get();
         mac.reset();
         return mac.doFinal(data);
     }
+
+    @Override
+    public void generateMac(byte[] data, int offset, int length, byte[] out, int outOffset)
+            throws GeneralSecurityException {
+        Mac mac = macs.get();
+        mac.reset();
+        mac.update(data, offset, length);
+        mac.doFinal(out, outOffset);
+    }
+
+    private Mac copyPrototype() {
+        synchronized (prototype) {
+            try {
+                return (Mac) prototype.clone();
+            } catch (CloneNotSupportedException e) {
+                // Provider without clone support, set the key up again for this thread
+                try {
+                    Mac mac = Mac.getInstance(prototype.getAlgorithm(), prototype.getProvider());
+                    mac.init(key);
+                    return mac;
+                } catch (GeneralSecurityException f) {
+                    throw new IllegalStateException(f);
+                }
+            }
+        }
+    }
 }
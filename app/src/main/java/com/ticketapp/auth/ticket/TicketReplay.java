@@ -0,0 +1,137 @@
+package com.ticketapp.auth.ticket;
+
+import com.ticketapp.auth.app.ulctools.CardSession;
+import com.ticketapp.auth.app.ulctools.TapStatistics;
+import com.ticketapp.auth.app.ulctools.TraceReplay;
+import com.ticketapp.auth.app.ulctools.TransceiveTrace;
+import com.ticketapp.auth.app.ulctools.Utilities;
+
+import java.security.GeneralSecurityException;
+import java.util.List;
+
+/**
+ * Runs the ticket logic against recorded taps, without a card.
+ * <p/>
+ * Each recorded ticket tap is replayed through a new {@link CardSession} with the time and
+ * the reader challenges of the recording, and with the steps of the recording: prepare if
+ * the tap was prepared, then issue or use. So the ticket sends the same commands as in
+ * the recording. Other sessions in the trace, e.g. capability probes and dumps, are
+ * skipped. As no time is spent waiting for the card, the time per tap is the time spent
+ * in the host code: key derivation, MAC computation and parsing of the pages.
+ * <p/>
+ * The keys derived for a card are normally kept for its next taps, so by default they are
+ * dropped before every tap, clearing the shared cache of {@link Ticket#getKeyCache()}, and
+ * every tap includes the key derivation. See {@link #setDeriveKeys(boolean)}.
+ */
+public class TicketReplay {
+
+    private final TraceReplay replay;
+    private final Ticket ticket;
+    private final TapStatistics issues = new TapStatistics();
+    private final TapStatistics uses = new TapStatistics();
+    private boolean deriveKeys = true;
+    private int incomplete = 0;
+    private int skipped = 0;
+
+    /**
+     * @param replay recorded taps
+     * @param ticket ticket the taps are replayed with
+     */
+    public TicketReplay(TraceReplay replay, Ticket ticket) {
+        this.replay = replay;
+        this.ticket = ticket;
+    }
+
+    /**
+     * @param deriveKeys true to derive the keys on every tap, false to keep them between
+     *                   taps of the same card like the app does
+     */
+    public void setDeriveKeys(boolean deriveKeys) {
+        this.deriveKeys = deriveKeys;
+    }
+
+    /**
+     * Replay every remaining ticket tap. Issue taps run {@link Ticket#issue(int, int)}, use
+     * taps run {@link Ticket#use()} and read the remaining uses and expiry time afterwards
+     * like the validation screen does.
+     *
+     * @param daysValid days valid given to issue, as in the recording
+     * @param uses      uses given to issue, as in the recording
+     */
+    public void replay(int daysValid, int uses) throws GeneralSecurityException {
+        while (replay.nextSession()) {
+            List<Integer> kinds = replay.getSessionKinds();
+            boolean issue = kinds.contains(TransceiveTrace.KIND_ISSUE);
+            if (!issue && !kinds.contains(TransceiveTrace.KIND_USE)) {
+                skipped++;
+                continue;
+            }
+            if (deriveKeys) {
+                Ticket.getKeyCache().clear();
+                ticket.forgetDerivedKeys();
+            }
+
+            int mismatches = replay.getMismatches();
+            CardSession session = startSession();
+            long start = System.nanoTime();
+            try {
+                if (kinds.contains(TransceiveTrace.KIND_PREPARE)) ticket.prepare(session);
+                if (issue) {
+                    ticket.issue(daysValid, uses);
+                } else {
+                    ticket.use();
+                    ticket.getRemainingUses();
+                    ticket.getExpiryTime();
+                }
+            } finally {
+                session.close();
+            }
+            finishSession(issue ? issues : this.uses, start, mismatches);
+        }
+    }
+
+    /**
+     * @return time per issue tap, failed taps are the ones not matching the recording
+     */
+    public TapStatistics getIssueStatistics() {
+        return issues;
+    }
+
+    /**
+     * @return time per use tap, failed taps are the ones not matching the recording
+     */
+    public TapStatistics getUseStatistics() {
+        return uses;
+    }
+
+    /**
+     * @return number of taps where the ticket sent fewer commands than recorded
+     */
+    public int getIncomplete() {
+        return incomplete;
+    }
+
+    /**
+     * @return number of sessions skipped because they were not ticket taps
+     */
+    public int getSkipped() {
+        return skipped;
+    }
+
+    private CardSession startSession() {
+        CardSession session = new CardSession(replay);
+        session.setNonceSource(replay.getNonceSource());
+        session.open();
+        ticket.setTime(replay.getSessionTime());
+        ticket.setSession(session);
+        return session;
+    }
+
+    private void finishSession(TapStatistics statistics, long start, int mismatches) {
+        long duration = System.nanoTime() - start;
+        boolean matched = replay.getMismatches() == mismatches;
+        if (!replay.isSessionComplete()) incomplete++;
+        statistics.record(duration, matched && replay.isSessionComplete());
+        if (!matched) Utilities.log("Replay mismatch: " + replay.getFirstMismatch(), true);
+    }
+}
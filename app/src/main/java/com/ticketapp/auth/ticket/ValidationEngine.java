@@ -0,0 +1,170 @@
+package com.ticketapp.auth.ticket;
+
+import com.ticketapp.auth.app.ulctools.CardSession;
+import com.ticketapp.auth.app.ulctools.CardTransport;
+import com.ticketapp.auth.app.ulctools.Reader;
+import com.ticketapp.auth.app.ulctools.RoundTripEstimator;
+import com.ticketapp.auth.app.ulctools.TapStatistics;
+import com.ticketapp.auth.app.ulctools.Utilities;
+
+import java.security.GeneralSecurityException;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Validates tickets on several readers at the same time, without the UI, e.g. on a gate
+ * with a reader per lane.
+ * <p/>
+ * Every reader has its own {@link Ticket}, round trip estimate and statistics, and opens a
+ * new {@link CardSession} per tap. Taps run on a pool of worker threads, at most one tap
+ * per reader at a time, so taps on different readers do not wait for each other.
+ */
+public class ValidationEngine {
+
+    /**
+     * Receives the outcome of every tap, on the worker thread that ran it.
+     */
+    public interface Listener {
+        void onTap(int reader, boolean valid, String info);
+    }
+
+    private final Lane[] lanes;
+    private final ExecutorService workers;
+    private volatile Listener listener;
+
+    /**
+     * One worker thread per reader.
+     *
+     * @param readers links to the readers
+     */
+    public ValidationEngine(List<CardTransport> readers) throws GeneralSecurityException {
+        this(readers, readers.size());
+    }
+
+    /**
+     * @param readers links to the readers
+     * @param threads number of worker threads, more than the number of readers is not useful
+     */
+    public ValidationEngine(List<CardTransport> readers, int threads) throws GeneralSecurityException {
+        if (readers.isEmpty() || threads < 1) {
+            throw new IllegalArgumentException("No readers or no worker threads");
+        }
+        lanes = new Lane[readers.size()];
+        for (int i = 0; i < lanes.length; i++) {
+            lanes[i] = new Lane(readers.get(i));
+        }
+        workers = Executors.newFixedThreadPool(Math.min(threads, lanes.length), new ThreadFactory() {
+            private int count = 0;
+
+            @Override
+            public synchronized Thread newThread(Runnable r) {
+                return new Thread(r, "validation-" + count++);
+            }
+        });
+    }
+
+    public int getReaderCount() {
+        return lanes.length;
+    }
+
+    /**
+     * @param listener receives the outcome of every tap, null for none
+     */
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Validate the ticket on the card at the given reader, once.
+     *
+     * @param reader index of the reader
+     * @return true if the ticket was valid and a ride was used
+     */
+    public Future<Boolean> validate(final int reader) {
+        final Lane lane = lanes[reader];
+        return workers.submit(new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                return lane.tap(reader);
+            }
+        });
+    }
+
+    /**
+     * Read this after the taps of the reader have finished.
+     *
+     * @param reader index of the reader
+     * @return durations and outcomes of the taps on the reader so far
+     */
+    public TapStatistics getStatistics(int reader) {
+        return lanes[reader].statistics;
+    }
+
+    /**
+     * Finish the submitted taps and stop the worker threads.
+     *
+     * @param timeoutMillis how long to wait for the submitted taps
+     * @return true if every tap finished in time
+     */
+    public boolean shutdown(long timeoutMillis) throws InterruptedException {
+        workers.shutdown();
+        return workers.awaitTermination(timeoutMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * A reader with its ticket context. Taps on the same reader run one at a time.
+     */
+    private class Lane {
+
+        private final CardTransport transport;
+        private final Ticket ticket = new Ticket();
+        private final RoundTripEstimator roundTrips = new RoundTripEstimator();
+        private final TapStatistics statistics = new TapStatistics();
+
+        Lane(CardTransport transport) throws GeneralSecurityException {
+            this.transport = transport;
+        }
+
+        synchronized boolean tap(int reader) {
+            // Outcomes go to the listener, the taps are not added to the console history
+            Reader.setHistoryMuted(true);
+            try {
+                return tapMuted(reader);
+            } finally {
+                Reader.setHistoryMuted(false);
+            }
+        }
+
+        private boolean tapMuted(int reader) {
+            long start = System.nanoTime();
+            boolean valid = false;
+            String info;
+            CardSession session = new CardSession(transport);
+            session.setRoundTripEstimator(roundTrips);
+            if (!session.open()) {
+                info = "Card not found";
+            } else {
+                try {
+                    ticket.setSession(session);
+                    valid = ticket.use();
+                    info = ticket.getInfoToShow();
+                } catch (GeneralSecurityException e) {
+                    Utilities.log("Validation failed on reader " + reader + ": " + e, true);
+                    info = "Validation failed";
+                } finally {
+                    session.close();
+                }
+            }
+            statistics.record(System.nanoTime() - start, valid);
+
+            Listener listener = ValidationEngine.this.listener;
+            if (listener != null) listener.onTap(reader, valid, info);
+            return valid;
+        }
+    }
+}
@@ -0,0 +1,77 @@
+package com.ticketapp.auth.ticket;
+
+import com.ticketapp.auth.app.ulctools.CardSession;
+import com.ticketapp.auth.app.ulctools.Reader;
+import com.ticketapp.auth.app.ulctools.SimulatedUltralightC;
+import com.ticketapp.auth.app.ulctools.TagCapabilities;
+
+import java.security.GeneralSecurityException;
+
+/**
+ * Runs the tap path at start-up against a simulated card, so the first passenger does not
+ * pay for it: class loading of the ticket and card code, the provider lookups of the MAC
+ * and 3DES algorithms, seeding of the nonce pool, and the per-thread MAC and cipher
+ * instances of the thread it runs on.
+ * <p/>
+ * Run it on the thread the taps run on. The simulated card starts blank with the default
+ * key, so the ticket is issued with keys derived for it and then used, like a real card.
+ * The keys derived for it are kept in a cache of its own and its capabilities are
+ * forgotten afterwards, so the shared caches and their statistics only hold real cards.
+ */
+public class WarmUp {
+
+    static final byte[] UID = {0x00, 0x57, 0x41, 0x52, 0x4D, 0x55, 0x50};
+    private static final int USES = 3;
+
+    /**
+     * @return summary line with the duration and whether every tap succeeded
+     */
+    public static String run() throws GeneralSecurityException {
+        long start = System.nanoTime();
+
+        // Tickets issued with any MAC version are validated, look up every provider
+        byte[] key = new byte[16];
+        byte[] out = new byte[32];
+        for (MacAlgorithm algorithm : MacAlgorithm.values()) {
+            algorithm.create(key).generateMac(key, 0, key.length, out, 0);
+        }
+
+        // The commands to the simulated card are not shown on the console
+        Reader.setHistoryMuted(true);
+        boolean ok;
+        try {
+            SimulatedUltralightC card = new SimulatedUltralightC(UID);
+            Ticket ticket = new Ticket(new DerivedKeyCache(1));
+            ok = tap(card, ticket, true);
+            for (int i = 0; i < USES; i++) {
+                ok &= tap(card, ticket, false);
+            }
+        } finally {
+            TagCapabilities.forget(UID);
+            Reader.setHistoryMuted(false);
+        }
+
+        return String.format("warm-up: %.1f ms, %s", (System.nanoTime() - start) / 1e6,
+                ok ? "ok" : "failed");
+    }
+
+    /**
+     * One tap as the validation screen does it: prepare on discovery, then issue or use
+     * and read what is shown.
+     */
+    private static boolean tap(SimulatedUltralightC card, Ticket ticket, boolean issue)
+            throws GeneralSecurityException {
+        CardSession session = new CardSession(card);
+        if (!session.open()) return false;
+        try {
+            ticket.prepare(session);
+            boolean ok = issue ? ticket.issue(30, 10) : ticket.use();
+            ticket.getRemainingUses();
+            ticket.getExpiryTime();
+            ticket.getInfoToShow();
+            return ok;
+        } finally {
+            session.close();
+        }
+    }
+}
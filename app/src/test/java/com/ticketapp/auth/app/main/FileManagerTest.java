@@ -0,0 +1,31 @@
+package com.ticketapp.auth.app.main;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class FileManagerTest {
+
+    @After
+    public void tearDown() {
+        FileManager.keys.clear();
+    }
+
+    @Test
+    public void keyIsEverythingAfterTheTimeStamp() {
+        assertEquals("BREAKMEIFYOUCAN!", FileManager.getKeyValue("default,BREAKMEIFYOUCAN!"));
+        assertEquals("KEY,WITH,COMMAS!", FileManager.getKeyValue("16345,KEY,WITH,COMMAS!"));
+        assertEquals(",,,,,,,,,,,,,,,,", FileManager.getKeyValue("16345,,,,,,,,,,,,,,,,,"));
+        assertNull(FileManager.getKeyValue("no time stamp"));
+    }
+
+    @Test
+    public void keyValuesKeepTheirCommas() {
+        FileManager.keys.addAll(Arrays.asList("default,BREAKMEIFYOUCAN!", "16345,KEY,WITH,COMMAS!", "broken"));
+        assertEquals(Arrays.asList("BREAKMEIFYOUCAN!", "KEY,WITH,COMMAS!"), FileManager.getKeyValues());
+    }
+}
@@ -0,0 +1,66 @@
+package com.ticketapp.auth.app.ulctools;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class CardSessionTest {
+
+    private static FaultInjectingTransport link(long seed) {
+        SimulatedUltralightC card = new SimulatedUltralightC(new byte[]{0x04, 7, 6, 5, 4, 3, 2}, new Random(seed));
+        return new FaultInjectingTransport(card, new Random(seed));
+    }
+
+    @Test
+    public void failedReconnectsAreCountedAsAttempts() {
+        FaultInjectingTransport link = link(1);
+        CardSession session = new CardSession(link);
+        assertTrue(session.open());
+        session.setRetryPolicy(new RetryPolicy(3, 4, 60000));
+        assertEquals(16, session.readPage(4, true).length);
+
+        // The card leaves the field, every reconnect fails
+        link.tearAfter(0);
+        assertEquals(0, session.readPage(4, true).length);
+        assertEquals(1 + 3, session.getAttempts());
+        assertEquals(2, session.getRetries());
+        assertEquals(2, session.getReconnects());
+        assertEquals(1, session.getFailures());
+        session.close();
+    }
+
+    @Test
+    public void failedRecoveryOfACommandThatIsNotRetriedIsAFailure() {
+        FaultInjectingTransport link = link(2);
+        CardSession session = new CardSession(link);
+        assertTrue(session.open());
+
+        link.tearAfter(0);
+        assertNull(session.readPageOnce(4));
+        // The card is halted, the next command has to reconnect first and cannot
+        assertNull(session.readPageOnce(4));
+        assertEquals(2, session.getAttempts());
+        assertEquals(1, session.getReconnects());
+        assertEquals(2, session.getFailures());
+        session.close();
+    }
+
+    @Test
+    public void haltedCardIsRecoveredBeforeTheNextCommand() {
+        FaultInjectingTransport link = link(3);
+        CardSession session = new CardSession(link);
+        assertTrue(session.open());
+
+        link.tearAfter(0);
+        assertNull(session.readPageOnce(4));
+        link.restore();
+        assertEquals(16, session.readPage(4, true).length);
+        assertEquals(1, session.getReconnects());
+        assertEquals(1, session.getFailures());
+        session.close();
+    }
+}
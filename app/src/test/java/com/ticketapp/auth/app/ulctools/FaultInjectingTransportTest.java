@@ -0,0 +1,99 @@
+package com.ticketapp.auth.app.ulctools;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class FaultInjectingTransportTest {
+
+    private static final byte[] READ_PAGE_4 = {0x30, 0x04};
+
+    private static FaultInjectingTransport link(long seed) throws IOException {
+        SimulatedUltralightC card = new SimulatedUltralightC(new byte[]{0x04, 1, 2, 3, 4, 5, 6}, new Random(seed));
+        FaultInjectingTransport link = new FaultInjectingTransport(card, new Random(seed));
+        link.connect();
+        return link;
+    }
+
+    @Test
+    public void failsAboutTheConfiguredShareOfCommands() throws IOException {
+        FaultInjectingTransport link = link(1);
+        link.setFailureRate(0.1);
+        int failed = 0;
+        for (int i = 0; i < 2000; i++) {
+            try {
+                link.transceive(READ_PAGE_4);
+            } catch (IOException e) {
+                failed++;
+            }
+        }
+        assertEquals(failed, link.getInjectedFailures());
+        assertTrue("failed " + failed, failed > 140 && failed < 260);
+    }
+
+    @Test
+    public void tearsAfterTheGivenNumberOfCommands() throws IOException {
+        FaultInjectingTransport link = link(2);
+        link.tearAfter(3);
+        for (int i = 0; i < 3; i++) link.transceive(READ_PAGE_4);
+        try {
+            link.transceive(READ_PAGE_4);
+            fail("command after the tear succeeded");
+        } catch (IOException expected) {
+        }
+        assertTrue(link.isTorn());
+        assertFalse(link.isConnected());
+        try {
+            link.connect();
+            fail("reconnected to a torn card");
+        } catch (IOException expected) {
+        }
+
+        link.restore();
+        link.connect();
+        assertEquals(16, link.transceive(READ_PAGE_4).length);
+    }
+
+    @Test
+    public void tornWriteReachesTheCardOrNot() throws IOException {
+        int written = 0;
+        Random random = new Random(4);
+        for (int i = 0; i < 40; i++) {
+            SimulatedUltralightC card = new SimulatedUltralightC(new byte[]{0x04, 1, 2, 3, 4, 5, 6});
+            FaultInjectingTransport link = new FaultInjectingTransport(card, random);
+            link.connect();
+            link.tearAfter(0);
+            try {
+                link.transceive(new byte[]{(byte) 0xA2, 0x05, 1, 2, 3, 4});
+                fail("torn write succeeded");
+            } catch (IOException expected) {
+            }
+            byte[] page = card.getPage(5);
+            if (page[0] == 1) {
+                assertArrayEquals(new byte[]{1, 2, 3, 4}, page);
+                written++;
+            }
+        }
+        assertTrue("written " + written, written > 5 && written < 35);
+    }
+
+    @Test
+    public void slowCommandsTimeOut() throws IOException {
+        FaultInjectingTransport link = link(3);
+        link.setDefaultLatency(new FaultInjectingTransport.Latency(20000, 0));
+        link.setTimeout(5);
+        try {
+            link.transceive(READ_PAGE_4);
+            fail("slow command did not time out");
+        } catch (IOException expected) {
+        }
+        assertEquals(1, link.getTimeouts());
+    }
+}
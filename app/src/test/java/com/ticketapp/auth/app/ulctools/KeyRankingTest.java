@@ -0,0 +1,28 @@
+package com.ticketapp.auth.app.ulctools;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class KeyRankingTest {
+
+    @Test
+    public void scoresOfKeysWithCommasAreRestored() {
+        List<String> keys = Arrays.asList("BREAKMEIFYOUCAN!", "KEY,WITH,COMMAS!", ",,,,,,,,,,,,,,,,");
+        long now = 1000000;
+        KeyRanking ranking = new KeyRanking();
+        ranking.recordHit("KEY,WITH,COMMAS!", now);
+        ranking.recordHit(",,,,,,,,,,,,,,,,", now);
+        ranking.recordHit(",,,,,,,,,,,,,,,,", now);
+        assertTrue(ranking.isChanged());
+
+        KeyRanking restored = new KeyRanking();
+        restored.fromLines(ranking.toLines());
+        assertEquals(Arrays.asList(",,,,,,,,,,,,,,,,", "KEY,WITH,COMMAS!", "BREAKMEIFYOUCAN!"),
+                restored.rank(keys, now));
+    }
+}
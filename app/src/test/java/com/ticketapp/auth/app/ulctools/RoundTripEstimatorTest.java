@@ -0,0 +1,40 @@
+package com.ticketapp.auth.app.ulctools;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+public class RoundTripEstimatorTest {
+
+    @Test
+    public void usesTheMaximumUntilEnoughRoundTrips() {
+        RoundTripEstimator estimator = new RoundTripEstimator(20, 300, 99, 3.0);
+        for (int i = 0; i < 7; i++) estimator.record(RoundTripEstimator.READ, 1000000);
+        assertEquals(300, estimator.getTimeout(RoundTripEstimator.READ));
+        estimator.record(RoundTripEstimator.READ, 1000000);
+        assertEquals(20, estimator.getTimeout(RoundTripEstimator.READ));
+        assertEquals(300, estimator.getTimeout(RoundTripEstimator.WRITE));
+    }
+
+    @Test
+    public void timeoutFollowsThePercentileOfTheLastRoundTrips() {
+        RoundTripEstimator estimator = new RoundTripEstimator(0, Integer.MAX_VALUE, 90, 1.0);
+        Random random = new Random(3);
+        long[] recorded = new long[1000];
+        for (int i = 0; i < recorded.length; i++) {
+            // Repeated values too, and a slow phase in the middle
+            recorded[i] = (i / 300 == 1 ? 50 : 1) * 1000000L * (1 + random.nextInt(20));
+            estimator.record(RoundTripEstimator.WRITE, recorded[i]);
+            if (i + 1 < 8) continue;
+
+            int n = Math.min(i + 1, RoundTripEstimator.SAMPLES);
+            long[] window = Arrays.copyOfRange(recorded, i + 1 - n, i + 1);
+            Arrays.sort(window);
+            long bound = window[Math.min(n - 1, n * 90 / 100)];
+            assertEquals("after " + (i + 1), (int) (bound / 1000000), estimator.getTimeout(RoundTripEstimator.WRITE));
+        }
+    }
+}
@@ -0,0 +1,94 @@
+package com.ticketapp.auth.app.ulctools;
+
+import com.ticketapp.auth.ticket.Ticket;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TransceiveTraceTest {
+
+    private static TransceiveTrace issue(SimulatedUltralightC card) throws GeneralSecurityException {
+        TransceiveTrace trace = new TransceiveTrace(1000, 40000);
+        trace.setRecordNonces(true);
+        CardSession session = new CardSession(card);
+        session.setTrace(trace);
+        assertTrue(session.open());
+        Ticket ticket = new Ticket();
+        ticket.setSession(session);
+        assertTrue(ticket.issue(30, 10));
+        session.close();
+        return trace;
+    }
+
+    private static boolean contains(byte[] data, byte[] part) {
+        outer:
+        for (int i = 0; i + part.length <= data.length; i++) {
+            for (int j = 0; j < part.length; j++) {
+                if (data[i + j] != part[j]) continue outer;
+            }
+            return true;
+        }
+        return false;
+    }
+
+    @Test
+    public void keyWritesAreRecordedWithoutTheKey() throws Exception {
+        SimulatedUltralightC card = new SimulatedUltralightC(new byte[]{0x04, 0x54, 0x52, 0x41, 0x43, 0x45, 0x01});
+        TransceiveTrace trace = issue(card);
+
+        ByteArrayOutputStream saved = new ByteArrayOutputStream();
+        trace.writeBinary(saved);
+        int keyWrites = 0;
+        for (int page = 44; page < 48; page++) {
+            assertFalse("key page " + page + " in the saved trace", contains(saved.toByteArray(), card.getPage(page)));
+        }
+        for (int i = 0; i < trace.size(); i++) {
+            if (trace.getOpcode(i) == 0xA2 && trace.getPage(i) >= TransceiveTrace.FIRST_KEY_PAGE) {
+                assertEquals(2, trace.getRequest(i).length);
+                keyWrites++;
+            }
+        }
+        assertEquals(4, keyWrites);
+    }
+
+    @Test
+    public void otherCommandsAreRecordedUnchanged() {
+        TransceiveTrace trace = new TransceiveTrace(10, 100);
+        byte[] write = {(byte) 0xA2, 0x2B, 1, 2, 3, 4};
+        trace.record(write, new byte[]{0x0A}, 0, 1, TransceiveTrace.OK);
+        // An event is not a command, even if its data looks like a key write
+        byte[] nonce = {(byte) 0xA2, 0x2C, 1, 2, 3, 4, 5, 6};
+        trace.recordEvent(TransceiveTrace.NONCE, nonce);
+        assertArrayEquals(write, trace.getRequest(0));
+        assertArrayEquals(nonce, trace.getRequest(1));
+    }
+
+    @Test
+    public void redactedTraceStillReplays() throws GeneralSecurityException, IOException {
+        SimulatedUltralightC card = new SimulatedUltralightC(new byte[]{0x04, 0x54, 0x52, 0x41, 0x43, 0x45, 0x02});
+        TransceiveTrace trace = issue(card);
+        ByteArrayOutputStream saved = new ByteArrayOutputStream();
+        trace.writeBinary(saved);
+
+        TraceReplay replay = new TraceReplay(TransceiveTrace.readBinary(new ByteArrayInputStream(saved.toByteArray())));
+        assertTrue(replay.nextSession());
+        CardSession session = new CardSession(replay);
+        session.setNonceSource(replay.getNonceSource());
+        assertTrue(session.open());
+        Ticket ticket = new Ticket();
+        ticket.setTime(replay.getSessionTime());
+        ticket.setSession(session);
+        assertTrue(ticket.issue(30, 10));
+        session.close();
+        assertEquals(replay.getFirstMismatch(), 0, replay.getMismatches());
+    }
+}
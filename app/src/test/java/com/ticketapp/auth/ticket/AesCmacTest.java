@@ -0,0 +1,64 @@
+package com.ticketapp.auth.ticket;
+
+import org.junit.Test;
+
+import java.security.GeneralSecurityException;
+
+import static org.junit.Assert.assertArrayEquals;
+
+/**
+ * Test vectors of RFC 4493, section 4.
+ */
+public class AesCmacTest {
+
+    private static final byte[] KEY = hex("2b7e151628aed2a6abf7158809cf4f3c");
+    private static final byte[] MESSAGE = hex("6bc1bee22e409f96e93d7e117393172a"
+            + "ae2d8a571e03ac9c9eb76fac45af8e51"
+            + "30c81c46a35ce411e5fbc1191a0a52ef"
+            + "f69f2445df4f9b17ad2b417be66c3710");
+
+    private static byte[] hex(String s) {
+        byte[] out = new byte[s.length() / 2];
+        for (int i = 0; i < out.length; i++) {
+            out[i] = (byte) Integer.parseInt(s.substring(2 * i, 2 * i + 2), 16);
+        }
+        return out;
+    }
+
+    private static void assertMac(String expected, int length) throws GeneralSecurityException {
+        byte[] out = new byte[16];
+        new AesCmac(KEY).generateMac(MESSAGE, 0, length, out, 0);
+        assertArrayEquals("length " + length, hex(expected), out);
+    }
+
+    @Test
+    public void emptyMessage() throws GeneralSecurityException {
+        assertMac("bb1d6929e95937287fa37d129b756746", 0);
+    }
+
+    @Test
+    public void oneBlock() throws GeneralSecurityException {
+        assertMac("070a16b46b4d4144f79bdd9dd04a287c", 16);
+    }
+
+    @Test
+    public void incompleteLastBlock() throws GeneralSecurityException {
+        assertMac("dfa66747de9ae63030ca32611497c827", 40);
+    }
+
+    @Test
+    public void fourBlocks() throws GeneralSecurityException {
+        assertMac("51f0bebf7e3b9d92fc49741779363cfe", 64);
+    }
+
+    @Test
+    public void messageAtAnOffset() throws GeneralSecurityException {
+        byte[] data = new byte[MESSAGE.length + 3];
+        System.arraycopy(MESSAGE, 0, data, 3, 40);
+        byte[] out = new byte[20];
+        new AesCmac(KEY).generateMac(data, 3, 40, out, 4);
+        byte[] mac = new byte[16];
+        System.arraycopy(out, 4, mac, 0, 16);
+        assertArrayEquals(hex("dfa66747de9ae63030ca32611497c827"), mac);
+    }
+}
@@ -0,0 +1,244 @@
+package com.ticketapp.auth.ticket;
+
+import com.ticketapp.auth.app.ulctools.CardSession;
+import com.ticketapp.auth.app.ulctools.CardTransport;
+import com.ticketapp.auth.app.ulctools.FaultInjectingTransport;
+import com.ticketapp.auth.app.ulctools.SimulatedUltralightC;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Moving issued cards to the current master keys when they are issued again.
+ */
+public class KeyRotationTest {
+
+    private static final int RIDES = 5; // Rides per issue, Ticket.MAX_RIDE
+    private static final int MAX_RIDE_PAGE = 39;
+    private static final int KEY_VERSION_BYTE = 3;
+    private static final int KEY_PAGE = 44;
+
+    private final KeyRing ring = Ticket.getKeyRing();
+    private int initialVersion;
+
+    private static byte[] key(int seed) {
+        byte[] key = new byte[16];
+        new Random(seed).nextBytes(key);
+        return key;
+    }
+
+    private static int keyVersion(SimulatedUltralightC card) {
+        return card.getPage(MAX_RIDE_PAGE)[KEY_VERSION_BYTE] & 0xFF;
+    }
+
+    private static byte[] authKey(SimulatedUltralightC card) {
+        byte[] key = new byte[16];
+        for (int i = 0; i < 4; i++) System.arraycopy(card.getPage(KEY_PAGE + i), 0, key, 4 * i, 4);
+        return key;
+    }
+
+    @Before
+    public void setUp() {
+        initialVersion = ring.getCurrent().getVersion();
+        ring.add(1, key(11), key(12), key(13));
+        ring.add(2, key(21), key(22), key(23));
+        ring.setCurrent(1);
+    }
+
+    @After
+    public void tearDown() {
+        ring.setCurrent(initialVersion);
+        ring.remove(1);
+        ring.remove(2);
+    }
+
+    @Test
+    public void reissueMovesTheCardToTheCurrentVersion() throws GeneralSecurityException {
+        SimulatedUltralightC card = TicketTest.newCard(0x500);
+        assertTrue(TicketTest.issue(new Ticket(), card));
+        assertEquals(1, keyVersion(card));
+        byte[] oldKey = authKey(card);
+
+        ring.setCurrent(2);
+        Ticket ticket = new Ticket();
+        assertTrue(TicketTest.issue(ticket, card));
+        assertEquals(2, keyVersion(card));
+        assertFalse(Arrays.equals(oldKey, authKey(card)));
+        assertEquals(2 * RIDES, ticket.getRemainingUses());
+
+        // The old version is not needed anymore
+        ring.remove(1);
+        ticket = new Ticket();
+        assertTrue(TicketTest.use(ticket, card));
+        assertEquals(2 * RIDES - 1, ticket.getRemainingUses());
+    }
+
+    @Test
+    public void rotationRecoversWithTheNewKeyAfterTheKeyWrite() throws GeneralSecurityException {
+        SimulatedUltralightC card = TicketTest.newCard(0x503);
+        assertTrue(TicketTest.issue(new Ticket(), card));
+
+        ring.setCurrent(2);
+        TicketTest.LostAfterKeyWrite link = new TicketTest.LostAfterKeyWrite(card);
+        assertTrue(tap(link, true));
+        assertTrue(link.lost);
+        assertEquals(2, keyVersion(card));
+        assertTrue(TicketTest.use(new Ticket(), card));
+    }
+
+    @Test
+    public void cardOfAnOlderVersionIsValidUntilIssuedAgain() throws GeneralSecurityException {
+        SimulatedUltralightC card = TicketTest.newCard(0x501);
+        assertTrue(TicketTest.issue(new Ticket(), card));
+
+        ring.setCurrent(2);
+        assertTrue(TicketTest.use(new Ticket(), card));
+        assertEquals(1, keyVersion(card));
+    }
+
+    /**
+     * The key pages are written one by one, a card torn in between has a key that is
+     * neither the old nor the new one. Every other tear is completed by the next issue.
+     */
+    @Test
+    public void tornRotationCompletesOnTheNextIssue() throws GeneralSecurityException {
+        Random random = new Random(5);
+        int completed = 0;
+        for (int commands = 0; commands < 40; commands++) {
+            SimulatedUltralightC card = TicketTest.newCard(0x600 + commands);
+            assertTrue(TicketTest.issue(new Ticket(), card));
+            ring.setCurrent(2);
+            byte[] oldKey = authKey(card);
+
+            FaultInjectingTransport link = new FaultInjectingTransport(card, random);
+            link.tearAfter(commands);
+            CardSession session = new CardSession(link);
+            if (session.open()) {
+                try {
+                    Ticket ticket = new Ticket();
+                    ticket.setSession(session);
+                    ticket.issue(30, 10);
+                } finally {
+                    session.close();
+                }
+            }
+            link.restore();
+            ring.setCurrent(1);
+            if (isKeyTorn(oldKey, authKey(card))) continue;
+
+            ring.setCurrent(2);
+            assertTrue("torn after " + commands, TicketTest.issue(new Ticket(), card));
+            assertEquals("torn after " + commands, 2, keyVersion(card));
+            assertTrue("torn after " + commands, TicketTest.use(new Ticket(), card));
+            ring.setCurrent(1);
+            completed++;
+        }
+        assertTrue("completed " + completed, completed >= 35);
+    }
+
+    private static boolean isKeyTorn(byte[] oldKey, byte[] key) {
+        int changed = 0;
+        for (int i = 0; i < 16; i += 4) {
+            if (!Arrays.equals(Arrays.copyOfRange(oldKey, i, i + 4), Arrays.copyOfRange(key, i, i + 4))) changed++;
+        }
+        return changed > 0 && changed < 4;
+    }
+
+    @Test
+    public void failedReadOfTheKeyVersionFailsTheTap() throws GeneralSecurityException {
+        SimulatedUltralightC card = TicketTest.newCard(0x502);
+        assertTrue(TicketTest.issue(new Ticket(), card));
+        ring.setCurrent(2);
+        byte[] key = authKey(card);
+
+        UnreadableVersion link = new UnreadableVersion(card);
+        assertFalse(tap(link, true));
+        assertFalse(tap(link, false));
+        // Not authenticated with the keys of a guessed version, and nothing written
+        assertEquals(0, link.authentications);
+        assertEquals(1, keyVersion(card));
+        assertArrayEquals(key, authKey(card));
+    }
+
+    private static boolean tap(CardTransport link, boolean issue) throws GeneralSecurityException {
+        CardSession session = new CardSession(link);
+        assertTrue(session.open());
+        try {
+            Ticket ticket = new Ticket();
+            ticket.setSession(session);
+            return issue ? ticket.issue(30, 10) : ticket.use();
+        } finally {
+            session.close();
+        }
+    }
+
+    /**
+     * Reads of the page with the key version fail.
+     */
+    private static class UnreadableVersion implements CardTransport {
+
+        private final CardTransport card;
+        int authentications = 0;
+
+        UnreadableVersion(CardTransport card) {
+            this.card = card;
+        }
+
+        @Override
+        public byte[] transceive(byte[] data) throws IOException {
+            int opcode = data[0] & 0xFF;
+            if (opcode == 0x1A) authentications++;
+            if (opcode == 0x30 && data[1] <= MAX_RIDE_PAGE && MAX_RIDE_PAGE < data[1] + 4
+                    || opcode == 0x3A && data[1] <= MAX_RIDE_PAGE && MAX_RIDE_PAGE <= data[2]) {
+                throw new IOException("Transceive failed");
+            }
+            return card.transceive(data);
+        }
+
+        @Override
+        public void connect() throws IOException {
+            card.connect();
+        }
+
+        @Override
+        public void close() throws IOException {
+            card.close();
+        }
+
+        @Override
+        public boolean isConnected() {
+            return card.isConnected();
+        }
+
+        @Override
+        public void setTimeout(int millis) {
+            card.setTimeout(millis);
+        }
+
+        @Override
+        public int getMaxTransceiveLength() {
+            return card.getMaxTransceiveLength();
+        }
+
+        @Override
+        public int getType() {
+            return card.getType();
+        }
+
+        @Override
+        public byte[] getId() {
+            return card.getId();
+        }
+    }
+}
@@ -0,0 +1,78 @@
+package com.ticketapp.auth.ticket;
+
+import com.ticketapp.auth.app.ulctools.SimulatedUltralightC;
+
+import org.junit.Test;
+
+import java.security.GeneralSecurityException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tickets issued with every MAC version, validated by a reader that issues with another.
+ */
+public class MacAlgorithmTest {
+
+    private static final int MAX_RIDE_PAGE = 39;
+    private static final int MAC_VERSION_BYTE = 2;
+
+    private static SimulatedUltralightC issued(MacAlgorithm algorithm, int serial)
+            throws GeneralSecurityException {
+        SimulatedUltralightC card = TicketTest.newCard(serial);
+        Ticket issuer = new Ticket();
+        issuer.setMacAlgorithm(algorithm);
+        assertTrue(algorithm.toString(), TicketTest.issue(issuer, card));
+        return card;
+    }
+
+    @Test
+    public void everyVersionIsValidatedWithItsOwnAlgorithm() throws GeneralSecurityException {
+        int serial = 0x200;
+        for (MacAlgorithm algorithm : MacAlgorithm.values()) {
+            SimulatedUltralightC card = issued(algorithm, serial++);
+            assertEquals(algorithm.getVersion(), card.getPage(MAX_RIDE_PAGE)[MAC_VERSION_BYTE] & 0x0F);
+
+            for (MacAlgorithm validator : MacAlgorithm.values()) {
+                Ticket ticket = new Ticket();
+                ticket.setMacAlgorithm(validator);
+                assertTrue(algorithm + " on " + validator, TicketTest.use(ticket, card));
+            }
+        }
+    }
+
+    @Test
+    public void changedVersionFailsTheMac() throws GeneralSecurityException {
+        int serial = 0x300;
+        for (MacAlgorithm algorithm : MacAlgorithm.values()) {
+            for (MacAlgorithm other : MacAlgorithm.values()) {
+                if (other == algorithm) continue;
+                SimulatedUltralightC card = issued(algorithm, serial++);
+                byte[] page = card.getPage(MAX_RIDE_PAGE);
+                page[MAC_VERSION_BYTE] = (byte) ((page[MAC_VERSION_BYTE] & 0xF0) | other.getVersion());
+                card.setPage(MAX_RIDE_PAGE, page);
+
+                assertFalse(algorithm + " as " + other, TicketTest.use(new Ticket(), card));
+            }
+        }
+    }
+
+    @Test
+    public void unknownVersionFailsTheMac() throws GeneralSecurityException {
+        SimulatedUltralightC card = issued(MacAlgorithm.AES_CMAC, 0x400);
+        byte[] page = card.getPage(MAX_RIDE_PAGE);
+        page[MAC_VERSION_BYTE] |= 0x0F;
+        card.setPage(MAX_RIDE_PAGE, page);
+
+        assertFalse(TicketTest.use(new Ticket(), card));
+    }
+
+    @Test
+    public void benchmarkCoversEveryAlgorithm() throws GeneralSecurityException {
+        String result = MacBenchmark.run(10);
+        for (MacAlgorithm algorithm : MacAlgorithm.values()) {
+            assertTrue(result, result.contains(algorithm + ": setup"));
+        }
+    }
+}
@@ -0,0 +1,64 @@
+package com.ticketapp.auth.ticket;
+
+import com.ticketapp.auth.app.ulctools.FaultInjectingTransport;
+import com.ticketapp.auth.app.ulctools.SimulatedUltralightC;
+import com.ticketapp.auth.app.ulctools.TagCapabilities;
+import com.ticketapp.auth.app.ulctools.TapStatistics;
+
+import org.junit.Test;
+
+import java.security.GeneralSecurityException;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class TapProfileTest {
+
+    private static TapProfile profile(int serial, double failureRate, double tearRate)
+            throws GeneralSecurityException {
+        SimulatedUltralightC card = TicketTest.newCard(serial);
+        FaultInjectingTransport link = new FaultInjectingTransport(card, new Random(serial));
+        link.setFailureRate(failureRate);
+        TapProfile profile = new TapProfile(link, new Random(serial));
+        profile.setTearRate(tearRate, 20);
+        return profile;
+    }
+
+    @Test
+    public void everyTapSucceedsOnAGoodLink() throws GeneralSecurityException {
+        TapProfile profile = profile(100, 0, 0);
+        profile.run(12);
+        TapStatistics uses = profile.getUseStatistics();
+        assertEquals(12, uses.getCount());
+        assertEquals(0, uses.getFailures());
+        // 5 rides per issue
+        assertEquals(3, profile.getIssueStatistics().getCount());
+        assertEquals(0, profile.getIssueStatistics().getFailures());
+    }
+
+    @Test
+    public void faultsAreCountedAndTheCardRecovers() throws GeneralSecurityException {
+        TapProfile profile = profile(101, 0.01, 0.1);
+        profile.run(200);
+        TapStatistics uses = profile.getUseStatistics();
+        assertEquals(200, uses.getCount());
+        assertTrue(uses.toString(), uses.getFailures() > 0);
+        assertTrue(uses.toString(), uses.getFailureRate() < 0.3);
+        assertTrue(uses.getPercentile(99) >= uses.getPercentile(50));
+    }
+
+    @Test
+    public void badLinkLeavesTheSharedCachesAlone() throws GeneralSecurityException {
+        DerivedKeyCache keys = Ticket.getKeyCache();
+        int size = keys.size();
+        int misses = keys.getMisses();
+
+        String result = TapProfile.badLink(5, 1);
+        assertTrue(result, result.startsWith("bad link, issue: "));
+        assertEquals(size, keys.size());
+        assertEquals(misses, keys.getMisses());
+        assertNull(TagCapabilities.get(TapProfile.BAD_LINK_UID));
+    }
+}
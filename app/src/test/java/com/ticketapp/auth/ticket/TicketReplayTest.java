@@ -0,0 +1,110 @@
+package com.ticketapp.auth.ticket;
+
+import com.ticketapp.auth.app.ulctools.CardSession;
+import com.ticketapp.auth.app.ulctools.SimulatedUltralightC;
+import com.ticketapp.auth.app.ulctools.TagCapabilities;
+import com.ticketapp.auth.app.ulctools.TraceReplay;
+import com.ticketapp.auth.app.ulctools.TransceiveTrace;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TicketReplayTest {
+
+    private static final int USES = 3;
+
+    /** Taps as the app makes them, all recorded into one trace */
+    private static TransceiveTrace record(SimulatedUltralightC card) throws GeneralSecurityException {
+        TransceiveTrace trace = new TransceiveTrace(2000, 64 * 1024);
+        trace.setRecordNonces(true);
+        Ticket ticket = new Ticket();
+
+        // Capabilities probe of the new card
+        CardSession session = open(card, trace);
+        TagCapabilities.probe(session);
+        session.close();
+
+        // Prepared when the card is discovered, then issued on the same session
+        session = open(card, trace);
+        ticket.prepare(session);
+        ticket.setSession(session);
+        assertTrue(ticket.issue(30, 10));
+        session.close();
+
+        for (int i = 0; i < USES; i++) {
+            session = open(card, trace);
+            assertTrue(ticket.prepare(session));
+            ticket.setSession(session);
+            assertTrue(ticket.use());
+            ticket.getRemainingUses();
+            ticket.getExpiryTime();
+            session.close();
+        }
+
+        // Validated without preparing, e.g. by the validation engine
+        session = open(card, trace);
+        ticket.setSession(session);
+        assertTrue(ticket.use());
+        ticket.getRemainingUses();
+        ticket.getExpiryTime();
+        session.close();
+
+        // Dump of the card
+        session = open(card, trace);
+        session.readMemory(new byte[48 * 4], false, false);
+        session.close();
+        return trace;
+    }
+
+    private static CardSession open(SimulatedUltralightC card, TransceiveTrace trace) {
+        CardSession session = new CardSession(card);
+        session.setTrace(trace);
+        assertTrue(session.open());
+        return session;
+    }
+
+    private static TraceReplay saveAndLoad(TransceiveTrace trace) throws IOException {
+        ByteArrayOutputStream saved = new ByteArrayOutputStream();
+        trace.writeBinary(saved);
+        return new TraceReplay(TransceiveTrace.readBinary(new ByteArrayInputStream(saved.toByteArray())));
+    }
+
+    @Test
+    public void replaysEveryTicketTapWithItsOwnKind() throws Exception {
+        TransceiveTrace trace = record(TicketTest.newCard(200));
+        TicketReplay replay = new TicketReplay(saveAndLoad(trace), new Ticket());
+        replay.replay(30, 10);
+
+        assertEquals(1, replay.getIssueStatistics().getCount());
+        assertEquals(0, replay.getIssueStatistics().getFailures());
+        assertEquals(USES + 1, replay.getUseStatistics().getCount());
+        assertEquals(0, replay.getUseStatistics().getFailures());
+        assertEquals(0, replay.getIncomplete());
+        // The probe and the dump
+        assertEquals(2, replay.getSkipped());
+    }
+
+    @Test
+    public void everyTapDerivesTheKeys() throws Exception {
+        TransceiveTrace trace = record(TicketTest.newCard(201));
+
+        int misses = Ticket.getKeyCache().getMisses();
+        TicketReplay replay = new TicketReplay(saveAndLoad(trace), new Ticket());
+        replay.replay(30, 10);
+        assertEquals(USES + 2, Ticket.getKeyCache().getMisses() - misses);
+
+        misses = Ticket.getKeyCache().getMisses();
+        replay = new TicketReplay(saveAndLoad(trace), new Ticket());
+        replay.setDeriveKeys(false);
+        replay.replay(30, 10);
+        assertTrue(Ticket.getKeyCache().getMisses() - misses <= 1);
+        assertEquals(0, replay.getUseStatistics().getFailures());
+    }
+}
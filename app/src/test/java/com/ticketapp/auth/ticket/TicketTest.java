@@ -0,0 +1,201 @@
+package com.ticketapp.auth.ticket;
+
+import com.ticketapp.auth.app.ulctools.CardSession;
+import com.ticketapp.auth.app.ulctools.CardTransport;
+import com.ticketapp.auth.app.ulctools.Dump;
+import com.ticketapp.auth.app.ulctools.Reader;
+import com.ticketapp.auth.app.ulctools.SimulatedUltralightC;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Issue and use tickets on a simulated card, on the JVM without the app.
+ */
+public class TicketTest {
+
+    private static final int RIDES = 5; // Rides per issue, Ticket.MAX_RIDE
+
+    static SimulatedUltralightC newCard(int serial) {
+        return new SimulatedUltralightC(new byte[]{0x04, 0x54, 0x45, 0x53, 0x54, (byte) (serial >> 8), (byte) serial});
+    }
+
+    /** One tap: a new session with the card, closed afterwards */
+    static boolean issue(Ticket ticket, SimulatedUltralightC card) throws GeneralSecurityException {
+        CardSession session = new CardSession(card);
+        assertTrue(session.open());
+        try {
+            ticket.setSession(session);
+            return ticket.issue(30, 10);
+        } finally {
+            session.close();
+        }
+    }
+
+    static boolean use(Ticket ticket, SimulatedUltralightC card) throws GeneralSecurityException {
+        CardSession session = new CardSession(card);
+        assertTrue(session.open());
+        try {
+            ticket.setSession(session);
+            return ticket.use();
+        } finally {
+            session.close();
+        }
+    }
+
+    @Test
+    public void issueThenUseEveryRide() throws GeneralSecurityException {
+        SimulatedUltralightC card = newCard(1);
+        Ticket ticket = new Ticket();
+
+        assertTrue(issue(ticket, card));
+        for (int i = 1; i <= RIDES; i++) {
+            assertTrue("use " + i, use(ticket, card));
+            assertEquals(RIDES - i, ticket.getRemainingUses());
+        }
+        assertFalse("use " + (RIDES + 1), use(ticket, card));
+        assertEquals(0, ticket.getRemainingUses());
+    }
+
+    @Test
+    public void reissueAddsRides() throws GeneralSecurityException {
+        SimulatedUltralightC card = newCard(2);
+        Ticket ticket = new Ticket();
+
+        assertTrue(issue(ticket, card));
+        assertTrue(use(ticket, card));
+        // Re-issued on another reader
+        assertTrue(issue(new Ticket(), card));
+        assertTrue(use(ticket, card));
+        assertEquals(2 * RIDES - 2, ticket.getRemainingUses());
+    }
+
+    @Test
+    public void blankCardIsNotValid() throws GeneralSecurityException {
+        assertFalse(use(new Ticket(), newCard(3)));
+    }
+
+    @Test
+    public void preparedSessionSkipsAuthentication() throws GeneralSecurityException {
+        SimulatedUltralightC card = newCard(4);
+        Ticket ticket = new Ticket();
+        assertTrue(issue(ticket, card));
+
+        CardSession session = new CardSession(card);
+        assertTrue(session.open());
+        try {
+            assertTrue(ticket.prepare(session));
+            assertTrue(session.isAuthenticated());
+            assertTrue(ticket.use());
+        } finally {
+            session.close();
+        }
+    }
+
+    @Test
+    public void cardKeyIsNotShownOnTheConsole() throws GeneralSecurityException {
+        SimulatedUltralightC card = newCard(6);
+        Ticket ticket = new Ticket();
+        Reader.clearHistory();
+        assertTrue(issue(ticket, card));
+        assertTrue(use(ticket, card));
+
+        String history = Reader.history;
+        assertTrue(history.contains("A2 2C"));
+        for (int page = 44; page < 48; page++) {
+            assertFalse(history.contains(Dump.hex(card.getPage(page))));
+            assertFalse(history.contains(Dump.hex(card.getPage(page), false)));
+        }
+        Reader.clearHistory();
+    }
+
+    @Test
+    public void issueRecoversWithTheNewKeyAfterTheKeyWrite() throws GeneralSecurityException {
+        SimulatedUltralightC card = newCard(5);
+        LostAfterKeyWrite link = new LostAfterKeyWrite(card);
+        CardSession session = new CardSession(link);
+        assertTrue(session.open());
+        Ticket ticket = new Ticket();
+        try {
+            ticket.setSession(session);
+            assertTrue(ticket.issue(30, 10));
+            assertTrue(link.lost);
+            assertEquals(1, session.getReauthentications());
+            assertEquals(0, session.getFailures());
+        } finally {
+            session.close();
+        }
+        assertTrue(use(new Ticket(), card));
+    }
+
+    /**
+     * The card leaves the field for a moment right after the last page of the key is
+     * written, the command after it is lost.
+     */
+    static class LostAfterKeyWrite implements CardTransport {
+
+        private static final int LAST_KEY_PAGE = 47;
+
+        private final CardTransport card;
+        private boolean lose = false;
+        boolean lost = false;
+
+        LostAfterKeyWrite(CardTransport card) {
+            this.card = card;
+        }
+
+        @Override
+        public byte[] transceive(byte[] data) throws IOException {
+            if (lose) {
+                lose = false;
+                lost = true;
+                card.close();
+                throw new IOException("Tag was lost");
+            }
+            byte[] response = card.transceive(data);
+            if ((data[0] & 0xFF) == 0xA2 && data[1] == LAST_KEY_PAGE && !lost) lose = true;
+            return response;
+        }
+
+        @Override
+        public void connect() throws IOException {
+            card.connect();
+        }
+
+        @Override
+        public void close() throws IOException {
+            card.close();
+        }
+
+        @Override
+        public boolean isConnected() {
+            return card.isConnected();
+        }
+
+        @Override
+        public void setTimeout(int millis) {
+            card.setTimeout(millis);
+        }
+
+        @Override
+        public int getMaxTransceiveLength() {
+            return card.getMaxTransceiveLength();
+        }
+
+        @Override
+        public int getType() {
+            return card.getType();
+        }
+
+        @Override
+        public byte[] getId() {
+            return card.getId();
+        }
+    }
+}
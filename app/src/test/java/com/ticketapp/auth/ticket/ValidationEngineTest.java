@@ -0,0 +1,229 @@
+package com.ticketapp.auth.ticket;
+
+import com.ticketapp.auth.app.ulctools.CardTransport;
+import com.ticketapp.auth.app.ulctools.FaultInjectingTransport;
+import com.ticketapp.auth.app.ulctools.Reader;
+import com.ticketapp.auth.app.ulctools.SimulatedUltralightC;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Validates tickets on several simulated readers at once, with a delay per command like
+ * a real link.
+ */
+public class ValidationEngineTest {
+
+    private static final int READERS = 4;
+    private static final int RIDES = 5; // Rides per issue, Ticket.MAX_RIDE
+    private static final long COMMAND_MICROS = 3000;
+
+    private final List<SimulatedUltralightC> cards = new ArrayList<SimulatedUltralightC>();
+    private final List<InFlight> links = new ArrayList<InFlight>();
+    // Commands sent and not yet answered, on all readers
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final AtomicInteger maxInFlight = new AtomicInteger();
+    // Counted down by the first command of every reader, null to not wait for the others
+    private CountDownLatch firstCommands;
+
+    @Before
+    public void setUp() {
+        Reader.setHistoryMuted(true);
+    }
+
+    @After
+    public void tearDown() {
+        Reader.setHistoryMuted(false);
+    }
+
+    /**
+     * A card on every reader, issued the given number of times.
+     */
+    private List<CardTransport> readers(int issues) throws GeneralSecurityException {
+        List<CardTransport> readers = new ArrayList<CardTransport>();
+        for (int i = 0; i < READERS; i++) {
+            SimulatedUltralightC card = TicketTest.newCard(0x100 + i);
+            Ticket ticket = new Ticket();
+            for (int j = 0; j < issues; j++) assertTrue(TicketTest.issue(ticket, card));
+            cards.add(card);
+
+            FaultInjectingTransport link = new FaultInjectingTransport(card, new Random(i));
+            link.setDefaultLatency(new FaultInjectingTransport.Latency(COMMAND_MICROS, 0));
+            InFlight counted = new InFlight(link);
+            links.add(counted);
+            readers.add(counted);
+        }
+        return readers;
+    }
+
+    /**
+     * Submit the taps reader by reader, round robin like passengers at the gates.
+     *
+     * @return number of valid taps per reader
+     */
+    private int[] validate(ValidationEngine engine, int taps)
+            throws InterruptedException, ExecutionException {
+        List<Future<Boolean>> results = new ArrayList<Future<Boolean>>();
+        for (int i = 0; i < taps; i++) {
+            for (int reader = 0; reader < READERS; reader++) {
+                results.add(engine.validate(reader));
+            }
+        }
+        int[] valid = new int[READERS];
+        for (int i = 0; i < results.size(); i++) {
+            if (results.get(i).get()) valid[i % READERS]++;
+        }
+        assertTrue(engine.shutdown(10000));
+        return valid;
+    }
+
+    @Test
+    public void everyReaderUsesTheRidesOfItsOwnCard() throws Exception {
+        ValidationEngine engine = new ValidationEngine(readers(1));
+        final AtomicIntegerArray reported = new AtomicIntegerArray(READERS);
+        engine.setListener(new ValidationEngine.Listener() {
+            @Override
+            public void onTap(int reader, boolean valid, String info) {
+                if (valid) reported.incrementAndGet(reader);
+            }
+        });
+
+        String history = Reader.history;
+        int[] valid = validate(engine, RIDES + 2);
+        // The taps are not shown on the console
+        assertEquals(history, Reader.history);
+        for (int reader = 0; reader < READERS; reader++) {
+            assertEquals("reader " + reader, RIDES, valid[reader]);
+            assertEquals("reader " + reader, RIDES, reported.get(reader));
+            assertEquals(RIDES + 2, engine.getStatistics(reader).getCount());
+            assertEquals(2, engine.getStatistics(reader).getFailures());
+        }
+
+        // Every card is used up, checked on another reader
+        for (SimulatedUltralightC card : cards) {
+            Ticket ticket = new Ticket();
+            assertFalse(TicketTest.use(ticket, card));
+            assertEquals(0, ticket.getRemainingUses());
+        }
+    }
+
+    @Test
+    public void readersRunInParallel() throws Exception {
+        // Every reader waits in its first command until all readers are in theirs
+        firstCommands = new CountDownLatch(READERS);
+        ValidationEngine engine = new ValidationEngine(readers(1));
+        int[] valid = validate(engine, RIDES);
+
+        assertEquals(0, firstCommands.getCount());
+        assertEquals(READERS, maxInFlight.get());
+        for (int reader = 0; reader < READERS; reader++) {
+            assertEquals("reader " + reader, RIDES, valid[reader]);
+            assertEquals("reader " + reader, 1, links.get(reader).maxOnReader);
+        }
+    }
+
+    @Test
+    public void tapsOnOneWorkerDoNotOverlap() throws Exception {
+        ValidationEngine engine = new ValidationEngine(readers(1), 1);
+        int[] valid = validate(engine, RIDES);
+
+        assertEquals(1, maxInFlight.get());
+        for (int reader = 0; reader < READERS; reader++) {
+            assertEquals("reader " + reader, RIDES, valid[reader]);
+        }
+    }
+
+    /**
+     * Counts the commands in flight, in total and on this reader.
+     */
+    private class InFlight implements CardTransport {
+
+        private final CardTransport card;
+        private boolean first = true;
+        private int current = 0;
+        int maxOnReader = 0;
+
+        InFlight(CardTransport card) {
+            this.card = card;
+        }
+
+        @Override
+        public byte[] transceive(byte[] data) throws IOException {
+            int total = inFlight.incrementAndGet();
+            synchronized (this) {
+                maxOnReader = Math.max(maxOnReader, ++current);
+            }
+            int max = maxInFlight.get();
+            while (total > max && !maxInFlight.compareAndSet(max, total)) max = maxInFlight.get();
+            try {
+                if (first && firstCommands != null) {
+                    first = false;
+                    firstCommands.countDown();
+                    try {
+                        firstCommands.await(10, TimeUnit.SECONDS);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+                return card.transceive(data);
+            } finally {
+                synchronized (this) {
+                    current--;
+                }
+                inFlight.decrementAndGet();
+            }
+        }
+
+        @Override
+        public void connect() throws IOException {
+            card.connect();
+        }
+
+        @Override
+        public void close() throws IOException {
+            card.close();
+        }
+
+        @Override
+        public boolean isConnected() {
+            return card.isConnected();
+        }
+
+        @Override
+        public void setTimeout(int millis) {
+            card.setTimeout(millis);
+        }
+
+        @Override
+        public int getMaxTransceiveLength() {
+            return card.getMaxTransceiveLength();
+        }
+
+        @Override
+        public int getType() {
+            return card.getType();
+        }
+
+        @Override
+        public byte[] getId() {
+            return card.getId();
+        }
+    }
+}
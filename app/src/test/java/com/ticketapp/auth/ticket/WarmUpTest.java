@@ -0,0 +1,34 @@
+package com.ticketapp.auth.ticket;
+
+import com.ticketapp.auth.app.ulctools.TagCapabilities;
+
+import org.junit.Test;
+
+import java.security.GeneralSecurityException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class WarmUpTest {
+
+    @Test
+    public void warmUpTapsSucceed() throws GeneralSecurityException {
+        String result = WarmUp.run();
+        assertTrue(result, result.startsWith("warm-up: ") && result.endsWith(", ok"));
+    }
+
+    @Test
+    public void sharedCachesAreNotChanged() throws GeneralSecurityException {
+        DerivedKeyCache keys = Ticket.getKeyCache();
+        int size = keys.size();
+        int hits = keys.getHits();
+        int misses = keys.getMisses();
+
+        WarmUp.run();
+        assertEquals(size, keys.size());
+        assertEquals(hits, keys.getHits());
+        assertEquals(misses, keys.getMisses());
+        assertNull(TagCapabilities.get(WarmUp.UID));
+    }
+}